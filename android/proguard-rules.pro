@@ -15,3 +15,8 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# OkHttpAdapter is only used when the app ships OkHttp
+-dontwarn com.nat.stream.http.OkHttpAdapter
+-dontwarn okhttp3.**
+-dontwarn okio.**
@@ -0,0 +1,107 @@
+package com.nat.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Delivers the callbacks of one request on the module's callback executor, one at a time and in
+ * the order they were posted. Progress is coalesced: while an update waits to be delivered, newer
+ * ones only replace its value, so a slow consumer gets the latest progress instead of a backlog.
+ * Without an executor every callback runs right away on the posting thread.
+ */
+
+final class CallbackQueue implements Runnable {
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    /**
+     * @param executor null to run callbacks on the posting thread
+     */
+    CallbackQueue(Executor executor) {
+        mExecutor = executor;
+    }
+
+    void post(Runnable task) {
+        if (mExecutor == null) {
+            task.run();
+            return;
+        }
+        synchronized (this) {
+            mTasks.add(task);
+            if (mRunning) return;
+            mRunning = true;
+        }
+        mExecutor.execute(this);
+    }
+
+    void postProgress(Progress progress, long loaded, long total) {
+        if (mExecutor == null) {
+            progress.deliver(loaded, total);
+            return;
+        }
+        synchronized (progress) {
+            progress.mLoaded = loaded;
+            progress.mTotal = total;
+            if (progress.mQueued) return;
+            progress.mQueued = true;
+        }
+        post(progress);
+    }
+
+    @Override
+    public void run() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mRunning = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        } finally {
+            if (!drained) {
+                // a callback threw, carry on with the rest in a new run
+                boolean more;
+                synchronized (this) {
+                    more = !mTasks.isEmpty();
+                    mRunning = more;
+                }
+                if (more) {
+                    mExecutor.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Progress callback of a request, delivering the latest value posted.
+     */
+    abstract static class Progress implements Runnable {
+        private long mLoaded;
+        private long mTotal;
+        private boolean mQueued;
+
+        abstract void deliver(long loaded, long total);
+
+        @Override
+        public void run() {
+            long loaded;
+            long total;
+            synchronized (this) {
+                loaded = mLoaded;
+                total = mTotal;
+                mQueued = false;
+            }
+            deliver(loaded, total);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import android.os.Environment;
 public class Constant {
     public static final String ROOT_PATH = Environment.getExternalStorageDirectory() + "/Instapp";
     public static final int DEFAULT_TIMEOUT_MS = 3000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
 
     //nat 自定义receiver的action
     public static final String VIDEO_PAUSE_OPERATE = "video_pause";
@@ -63,6 +64,8 @@ public class Constant {
 
     public static final String FETCH_INVALID_ARGUMENT  = "FETCH_INVALID_ARGUMENT";
     public static final String FETCH_NETWORK_ERROR  = "FETCH_NETWORK_ERROR";
+    public static final String FETCH_TIMEOUT  = "FETCH_TIMEOUT";
+    public static final String FETCH_ABORTED  = "FETCH_ABORTED";
 
     public static final String DOWNLOAD_INTERNAL_ERROR  = "DOWNLOAD_INTERNAL_ERROR";
     public static final String DOWNLOAD_INVALID_ARGUMENT  = "DOWNLOAD_INVALID_ARGUMENT";
@@ -105,6 +108,8 @@ public class Constant {
     public static final int FETCH_INTERNAL_ERROR_CODE = 151000;
     public static final int FETCH_INVALID_ARGUMENT_CODE = 151040;
     public static final int FETCH_NETWORK_ERROR_CODE = 151050;
+    public static final int FETCH_TIMEOUT_CODE = 151080;
+    public static final int FETCH_ABORTED_CODE = 151090;
 
     public static final int LOCATION_INTERNAL_ERROR_CODE = 160000;
     public static final int LOCATION_NOT_SUPPORTED_CODE = 160010;
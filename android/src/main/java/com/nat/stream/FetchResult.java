@@ -0,0 +1,203 @@
+package com.nat.stream;
+
+import com.nat.stream.http.Options;
+import com.nat.stream.http.RequestMetrics;
+import com.nat.stream.http.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Outcome of {@link StreamModule#fetch(Options, ModuleFetchListener)}: either a response, with
+ * status, headers and body, or a FETCH_* error when none came back. The body is decoded into
+ * {@link #getData()} and the map handed to JS is built by {@link #toMap()} only when asked
+ * for, each once.
+ */
+
+public final class FetchResult {
+    private final String mError;
+    private final int mErrorCode;
+    private final int mStatus;
+    private final String mStatusText;
+    private final boolean mHttpError;
+    private final Map<String, String> mHeaders;
+    private final byte[] mBody;
+    private final String mErrorBody;
+    private final String mPath;
+    private final Options.ResponseType mResponseType;
+    private final RequestMetrics mMetrics;
+
+    private boolean mDecoded;
+    private Object mData;
+    private HashMap<String, Object> mMap;
+
+    private FetchResult(String error, int errorCode, Response response, Map<String, String> headers,
+                        Options.ResponseType responseType) {
+        mError = error;
+        mErrorCode = errorCode;
+        mStatus = response != null ? response.statusCode : -1;
+        mStatusText = response != null ? response.statusMessage : null;
+        mHttpError = response != null && response.errorCode > 0;
+        mHeaders = headers != null ? Collections.unmodifiableMap(headers) : null;
+        mBody = response != null ? response.originalData : null;
+        mErrorBody = response != null ? response.errorMsg : null;
+        mPath = response != null ? response.filePath : null;
+        mResponseType = responseType;
+        mMetrics = response != null ? response.metrics : null;
+    }
+
+    static FetchResult error(String error, int errorCode) {
+        return new FetchResult(error, errorCode, null, null, Options.ResponseType.text);
+    }
+
+    /**
+     * @param headers first value of each response header, null if no headers came back
+     */
+    static FetchResult of(Response response, Map<String, String> headers, Options.ResponseType responseType) {
+        if (response.canceled) {
+            return new FetchResult(Constant.FETCH_ABORTED, Constant.FETCH_ABORTED_CODE, response, null, responseType);
+        }
+        if (response.timedOut) {
+            return new FetchResult(Constant.FETCH_TIMEOUT, Constant.FETCH_TIMEOUT_CODE, response, null, responseType);
+        }
+        if (response.errorCode < 0) {
+            return new FetchResult(Constant.FETCH_NETWORK_ERROR, Constant.FETCH_NETWORK_ERROR_CODE, response, null,
+                    responseType);
+        }
+        return new FetchResult(null, 0, response, headers, responseType);
+    }
+
+    /**
+     * FETCH_* message if no response came back, e.g. {@link Constant#FETCH_TIMEOUT}; null otherwise.
+     */
+    public String getError() {
+        return mError;
+    }
+
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /**
+     * A response came back and its status is not an error one.
+     */
+    public boolean isOk() {
+        return mError == null && !mHttpError;
+    }
+
+    /**
+     * @return -1 if no response came back
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public String getStatusText() {
+        return mStatusText;
+    }
+
+    /**
+     * First value of each response header, read-only; null if no response came back.
+     */
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * @return first value of the header {@code name}, case insensitive; null if absent
+     */
+    public String getHeader(String name) {
+        if (mHeaders == null || name == null) return null;
+        for (Map.Entry<String, String> entry : mHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Body of a successful response, decompressed but not decoded; null for an error response,
+     * a saved file or no response.
+     */
+    public InputStream getBody() {
+        return mBody != null ? new ByteArrayInputStream(mBody) : null;
+    }
+
+    /**
+     * Body as text, in the charset of its Content-Type; for an error response, its error body.
+     */
+    public String getText() {
+        if (mBody == null) return mErrorBody;
+        return new String(mBody, ResponseDecoder.charset(mHeaders));
+    }
+
+    /**
+     * Body decoded according to the {@link Options.ResponseType}, the {@code data} of
+     * {@link #toMap()}: parsed JSON, text or base64. Decoded once, later calls return the same
+     * object.
+     */
+    public synchronized Object getData() {
+        if (!mDecoded) {
+            mData = mBody != null
+                    ? ResponseDecoder.decode(mBody, mResponseType, mHeaders)
+                    : ResponseDecoder.decode(mErrorBody, mResponseType);
+            mDecoded = true;
+        }
+        return mData;
+    }
+
+    /**
+     * File the body was saved to, for fetches with {@code saveTo}.
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Timings of the request, null if it was not sent.
+     */
+    public RequestMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * The result in the form {@link StreamModule#fetch(String, ModuleResultListener)} delivers,
+     * built on the first call.
+     */
+    public synchronized HashMap<String, Object> toMap() {
+        if (mMap != null) {
+            return mMap;
+        }
+        if (mError != null) {
+            mMap = new HashMap<String, Object>(Util.getError(mError, mErrorCode));
+            return mMap;
+        }
+        HashMap<String, Object> result = new HashMap<String, Object>();
+        result.put("status", mStatus);
+        result.put("statusText", mStatusText);
+        if (mHeaders != null) {
+            result.put("headers", mHeaders);
+        }
+        if (mPath != null) {
+            result.put("ok", true);
+            result.put("path", mPath);
+        } else {
+            Object data = getData();
+            result.put("ok", !mHttpError);
+            if (data != null) result.put("data", data);
+        }
+        mMap = result;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return mError != null ? mError + " " + mErrorCode : mStatus + " " + mStatusText;
+    }
+}
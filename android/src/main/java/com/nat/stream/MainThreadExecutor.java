@@ -0,0 +1,21 @@
+package com.nat.stream;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Runs tasks on the main thread, for {@link StreamModule#setCallbackExecutor(Executor)}.
+ */
+
+public class MainThreadExecutor implements Executor {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        mHandler.post(command);
+    }
+}
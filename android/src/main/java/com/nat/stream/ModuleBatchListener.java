@@ -0,0 +1,18 @@
+package com.nat.stream;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Result listener for {@link StreamModule#fetchAll(String, long, ModuleResultListener)} that
+ * gets each request's result as soon as it completes, in no particular order. The final
+ * {@link #onResult(Object)} only carries {@code {count}}, once every request completed.
+ */
+
+public interface ModuleBatchListener extends ModuleResultListener {
+    /**
+     * @param index position of the request in the options array
+     * @param result what {@link StreamModule#fetch(String, ModuleResultListener)} would have
+     *               delivered for it
+     */
+    void onItem(int index, Object result);
+}
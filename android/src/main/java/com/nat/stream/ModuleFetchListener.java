@@ -0,0 +1,12 @@
+package com.nat.stream;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Result listener of {@link StreamModule#fetch(com.nat.stream.http.Options, ModuleFetchListener)},
+ * called on the worker thread that read the response.
+ */
+
+public interface ModuleFetchListener {
+    void onResult(FetchResult result);
+}
@@ -0,0 +1,22 @@
+package com.nat.stream;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Result listener that is also told how much of the request body has been sent and how much
+ * of the response body has been received.
+ */
+
+public interface ModuleProgressListener extends ModuleResultListener {
+    /**
+     * @param loaded bytes received so far
+     * @param total body length from Content-Length, -1 if the server did not send it
+     */
+    void onProgress(long loaded, long total);
+
+    /**
+     * @param sent request body bytes written to the connection so far
+     * @param total request body length, -1 if it is sent chunked
+     */
+    void onUploadProgress(long sent, long total);
+}
@@ -0,0 +1,16 @@
+package com.nat.stream;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Result listener for fetches with {@code stream: true}. Body chunks arrive through
+ * {@link #onChunk(byte[], int, int)} on the worker thread as they are read, the final
+ * {@link #onResult(Object)} carries status and headers but no data.
+ */
+
+public interface ModuleStreamListener extends ModuleResultListener {
+    /**
+     * @param chunk buffer reused for the next chunk, copy what must be kept
+     */
+    void onChunk(byte[] chunk, int offset, int length);
+}
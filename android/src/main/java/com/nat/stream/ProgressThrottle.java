@@ -0,0 +1,75 @@
+package com.nat.stream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Decides which progress updates of a transfer are worth a callback: the first one, then only
+ * once at least the minimum interval passed and, with a known total, the transfer advanced by
+ * at least the minimum step since the last one reported. Reaching the total is always
+ * reported.
+ */
+
+final class ProgressThrottle {
+    private final long mIntervalNanos;
+    private final int mStepPercent;
+    private long mReportedAt;
+    private long mReported = -1;
+    private long mLatest = -1;
+    private long mLatestTotal = -1;
+
+    /**
+     * @param intervalMs 0 for no minimum interval
+     * @param stepPercent 0 for no minimum step
+     */
+    ProgressThrottle(long intervalMs, int stepPercent) {
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        mStepPercent = stepPercent;
+    }
+
+    /**
+     * Same settings, nothing reported yet.
+     */
+    ProgressThrottle copy() {
+        return new ProgressThrottle(TimeUnit.NANOSECONDS.toMillis(mIntervalNanos), mStepPercent);
+    }
+
+    /**
+     * @param total -1 if unknown
+     * @return whether {@code loaded} should be reported now
+     */
+    synchronized boolean update(long loaded, long total) {
+        mLatest = loaded;
+        mLatestTotal = total;
+        long now = System.nanoTime();
+        boolean complete = total > 0 && loaded >= total;
+        if (mReported >= 0 && !complete) {
+            if (now - mReportedAt < mIntervalNanos) return false;
+            if (total > 0 && (loaded - mReported) * 100 < (long) mStepPercent * total) return false;
+        }
+        if (loaded == mReported) return false;
+        mReported = loaded;
+        mReportedAt = now;
+        return true;
+    }
+
+    /**
+     * Marks the last update as reported if it was held back.
+     *
+     * @return whether it was, see {@link #latest()}
+     */
+    synchronized boolean flush() {
+        if (mLatest == mReported) return false;
+        mReported = mLatest;
+        return true;
+    }
+
+    synchronized long latest() {
+        return mLatest;
+    }
+
+    synchronized long latestTotal() {
+        return mLatestTotal;
+    }
+}
@@ -0,0 +1,158 @@
+package com.nat.stream;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONException;
+import com.nat.stream.http.Options;
+import com.nat.stream.http.ResponseBody;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Turns a response body into the {@code data} of a fetch result according to its
+ * {@link Options.ResponseType}. Runs on the worker thread that read the body, so the thread
+ * receiving the result gets parsed JSON rather than text to parse.
+ */
+
+class ResponseDecoder {
+    private static final String TAG = "ResponseDecoder";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ResponseDecoder() {
+    }
+
+    /**
+     * @param headers response headers, for the Content-Type charset
+     * @return null for an empty body
+     */
+    static Object decode(byte[] body, Options.ResponseType type, Map<String, String> headers) {
+        if (body == null || body.length == 0) {
+            return null;
+        }
+        if (type == Options.ResponseType.binary) {
+            return Base64.encodeToString(body, Base64.NO_WRAP);
+        }
+        CharBuffer chars = decodeChars(body, charset(headers));
+        if (type == Options.ResponseType.json || type == Options.ResponseType.jsonp) {
+            if (type == Options.ResponseType.jsonp) {
+                chars = unwrapJsonp(chars);
+            }
+            Object json = parseJson(chars);
+            if (json != null) {
+                return json;
+            }
+        }
+        return chars.toString();
+    }
+
+    /**
+     * Same for a body already read as text, e.g. the body of an error response.
+     */
+    static Object decode(String body, Options.ResponseType type) {
+        if (body == null || body.length() == 0) {
+            return null;
+        }
+        if (type == Options.ResponseType.json || type == Options.ResponseType.jsonp) {
+            CharBuffer chars = CharBuffer.wrap(body.toCharArray());
+            Object json = parseJson(type == Options.ResponseType.jsonp ? unwrapJsonp(chars) : chars);
+            if (json != null) {
+                return json;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Parses straight from the decoded characters, without building a String of the whole
+     * body first; null if they are not valid JSON.
+     */
+    private static Object parseJson(CharBuffer chars) {
+        char[] input = chars.array();
+        int offset = chars.arrayOffset() + chars.position();
+        int length = chars.remaining();
+        if (offset != 0) {
+            char[] copy = new char[length];
+            System.arraycopy(input, offset, copy, 0, length);
+            input = copy;
+        }
+        try {
+            return JSON.parseObject(input, length, Object.class);
+        } catch (JSONException | ClassCastException e) {
+            Log.e(TAG, "invalid json response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The argument of {@code callback(...)}, optionally followed by a semicolon; the characters
+     * as they are if they are not wrapped.
+     */
+    private static CharBuffer unwrapJsonp(CharBuffer chars) {
+        int start = chars.position();
+        int end = chars.limit();
+        while (end > start && (Character.isWhitespace(chars.get(end - 1)) || chars.get(end - 1) == ';')) {
+            end--;
+        }
+        int open = -1;
+        for (int i = start; i < end; i++) {
+            char c = chars.get(i);
+            if (c == '(') {
+                open = i;
+                break;
+            }
+            if (c == '{' || c == '[' || c == '"') {
+                break;
+            }
+        }
+        if (open < 0 || end <= open + 1 || chars.get(end - 1) != ')') {
+            return chars;
+        }
+        CharBuffer unwrapped = chars.duplicate();
+        unwrapped.limit(end - 1);
+        unwrapped.position(open + 1);
+        return unwrapped;
+    }
+
+    private static CharBuffer decodeChars(byte[] body, Charset charset) {
+        int offset = 0;
+        if (UTF_8.equals(charset) && body.length >= 3
+                && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) {
+            // byte order mark
+            offset = 3;
+        }
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            return decoder.decode(ByteBuffer.wrap(body, offset, body.length - offset));
+        } catch (CharacterCodingException e) {
+            // not thrown with REPLACE
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Charset parameter of the Content-Type header, UTF-8 if absent or unknown.
+     */
+    static Charset charset(Map<String, String> headers) {
+        if (headers == null) return UTF_8;
+        String contentType = null;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if ("Content-Type".equalsIgnoreCase(entry.getKey())) {
+                contentType = entry.getValue();
+                break;
+            }
+        }
+        return ResponseBody.charset(contentType);
+    }
+}
@@ -5,19 +5,41 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONException;
 import com.alibaba.fastjson.JSONObject;
 
+import com.nat.stream.http.CachingHttpAdapter;
+import com.nat.stream.http.CancelSignal;
+import com.nat.stream.http.CoalescingHttpAdapter;
+import com.nat.stream.http.ConnectionPool;
+import com.nat.stream.http.ContentDecoder;
 import com.nat.stream.http.DefaultHttpAdapter;
+import com.nat.stream.http.DiskCache;
+import com.nat.stream.http.EventListener;
+import com.nat.stream.http.HttpDispatcher;
+import com.nat.stream.http.MemoryCache;
+import com.nat.stream.http.MetricsCollector;
+import com.nat.stream.http.MultipartBody;
 import com.nat.stream.http.Request;
+import com.nat.stream.http.RequestBody;
+import com.nat.stream.http.RequestMetrics;
 import com.nat.stream.http.Response;
+import com.nat.stream.http.RetryPolicy;
+import com.nat.stream.http.RoutingHttpAdapter;
+import com.nat.stream.http.SegmentedDownloader;
 import com.nat.stream.http.HttpAdapter;
 import com.nat.stream.http.Options;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by xuqinchao on 17/1/23.
@@ -25,12 +47,38 @@ import java.util.Map;
  */
 
 public class StreamModule {
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    public static final int DEFAULT_PROGRESS_STEP_PERCENT = 1;
 
     private Context mContext;
     private static volatile StreamModule instance = null;
+    private final HttpDispatcher mDispatcher;
+    private final DefaultHttpAdapter mNetworkAdapter;
+    private volatile HttpAdapter mHttpAdapter;
+    private volatile RoutingHttpAdapter mRouter;
+    private HttpAdapter mBaseAdapter;
+    private final Map<String, HttpAdapter> mHostAdapters = new HashMap<>();
+    private MemoryCache mMemoryCache;
+    private DiskCache mDiskCache;
+    private boolean mCoalescing = true;
+    private final AtomicInteger mNextRequestId = new AtomicInteger(1);
+    /**
+     * Requests in flight by id
+     */
+    private final Map<Integer, Call> mCalls = new HashMap<>();
+    private final MetricsCollector mMetrics = new MetricsCollector();
+    private volatile EventListener mEventListener;
+    private volatile boolean mLoggingEnabled;
+    private volatile Executor mCallbackExecutor;
+    private volatile long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private volatile int mProgressStepPercent = DEFAULT_PROGRESS_STEP_PERCENT;
 
     private StreamModule(Context context){
         mContext = context;
+        mDispatcher = new HttpDispatcher();
+        mNetworkAdapter = new DefaultHttpAdapter(mDispatcher);
+        mBaseAdapter = mNetworkAdapter;
+        updateHttpAdapter();
     }
 
     public static StreamModule getInstance(Context context) {
@@ -44,23 +92,313 @@ public class StreamModule {
 
         return instance;
     }
-    
-    public void fetch(String optionsStr, final ModuleResultListener ModuleResultListener){
-        if (ModuleResultListener == null)return;
+
+    public HttpDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Max number of requests running at once, across all hosts.
+     */
+    public void setMaxRequests(int maxRequests) {
+        mDispatcher.setMaxRequests(maxRequests);
+    }
+
+    /**
+     * Max number of requests running at once against a single host.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mDispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Max number of requests waiting for a free slot; further fetches fail immediately.
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        mDispatcher.setMaxQueuedRequests(maxQueuedRequests);
+    }
+
+    /**
+     * Max number of background priority requests running at once.
+     */
+    public void setMaxBackgroundRequests(int maxBackgroundRequests) {
+        mDispatcher.setMaxBackgroundRequests(maxBackgroundRequests);
+    }
+
+    /**
+     * Accept and decode responses in {@code decoder}'s content coding, in addition to the
+     * default gzip and deflate.
+     */
+    public void addContentDecoder(ContentDecoder decoder) {
+        mNetworkAdapter.addContentDecoder(decoder);
+    }
+
+    /**
+     * Keep-alive settings of the default adapter, which can only turn keep-alive off for its
+     * HttpURLConnections and ignores the idle limit and duration, see {@link ConnectionPool};
+     * the pool's counters estimate how often requests reused a connection.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        mNetworkAdapter.setConnectionPool(connectionPool);
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return mNetworkAdapter.getConnectionPool();
+    }
+
+    /**
+     * How failed requests are retried, {@link RetryPolicy#DEFAULT} unless changed;
+     * {@link RetryPolicy#NONE} delivers every failure right away.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mNetworkAdapter.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * Executor the result and progress callbacks of fetches are delivered on, e.g. a
+     * {@link MainThreadExecutor} or a single thread executor; null, the default, calls them on
+     * the worker thread that ran the request. Callbacks of one request arrive one at a time and
+     * in order, and progress a listener has not caught up with is coalesced into the latest
+     * value. Stream chunks are always delivered on the worker thread, their buffer is reused
+     * for the next chunk.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * How often progress listeners are called: at most once per {@code intervalMs} and, when the
+     * length is known, once the transfer advanced by at least {@code stepPercent} percent.
+     * Completion is always reported. Defaults to {@link #DEFAULT_PROGRESS_INTERVAL_MS} and
+     * {@link #DEFAULT_PROGRESS_STEP_PERCENT}, 0 and 0 reports every read.
+     */
+    public void setProgressThrottle(long intervalMs, int stepPercent) {
+        if (intervalMs < 0 || stepPercent < 0 || stepPercent > 100) {
+            throw new IllegalArgumentException("invalid progress throttle: " + intervalMs + "ms, " + stepPercent + "%");
+        }
+        mProgressIntervalMs = intervalMs;
+        mProgressStepPercent = stepPercent;
+    }
+
+    /**
+     * Log every fetch result at debug level; off by default, the results are not even turned
+     * into text then.
+     */
+    public void setLoggingEnabled(boolean enabled) {
+        mLoggingEnabled = enabled;
+    }
+
+    /**
+     * Per host latency percentiles and counters of every fetch so far.
+     */
+    public MetricsCollector getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Gets the {@link RequestMetrics} of every fetch as it finishes, besides
+     * {@link #getMetrics()}; null removes it. A coalesced request is reported once per fetch
+     * that shared it.
+     */
+    public void setEventListener(EventListener listener) {
+        mEventListener = listener;
+    }
+
+    /**
+     * Serve fresh GET responses from an in-memory cache of at most {@code maxSize} body bytes,
+     * following Cache-Control max-age / no-store and Expires. 0 turns the cache off.
+     */
+    public synchronized void setMemoryCacheSize(long maxSize) {
+        mMemoryCache = maxSize > 0 ? new MemoryCache(maxSize) : null;
+        updateHttpAdapter();
+    }
+
+    /**
+     * Keep GET responses in the app cache dir, up to {@code maxSize} body bytes, across
+     * restarts; stale ones are revalidated with If-None-Match / If-Modified-Since. 0 turns the
+     * disk cache off.
+     */
+    public synchronized void setDiskCacheSize(long maxSize) {
+        if (mDiskCache != null) {
+            mDiskCache.close();
+        }
+        mDiskCache = maxSize > 0 && mContext != null
+                ? new DiskCache(new File(mContext.getCacheDir(), "nat-stream-http"), maxSize) : null;
+        updateHttpAdapter();
+    }
+
+    /**
+     * Whether identical GET / HEAD fetches running at the same time share one request and its
+     * response. On by default.
+     */
+    public synchronized void setCoalescingEnabled(boolean enabled) {
+        mCoalescing = enabled;
+        updateHttpAdapter();
+    }
+
+    /**
+     * Adapter every request is sent through, e.g. an {@link com.nat.stream.http.OkHttpAdapter} on
+     * {@link #getDispatcher()}; null restores the default {@link DefaultHttpAdapter}. Caching
+     * and coalescing stay in front of it. Content decoders and the retry policy set on this
+     * module only apply to the default adapter. Segmented saveTo downloads run on the adapter
+     * directly if it is a {@link DefaultHttpAdapter}, e.g. an OkHttpAdapter; any other adapter
+     * gets them as one request.
+     */
+    public synchronized void setHttpAdapter(HttpAdapter adapter) {
+        mBaseAdapter = adapter != null ? adapter : mNetworkAdapter;
+        updateHttpAdapter();
+    }
+
+    /**
+     * Adapter requests to {@code host} are sent through instead of the one set with
+     * {@link #setHttpAdapter(HttpAdapter)}; null removes the route.
+     */
+    public synchronized void setHttpAdapter(String host, HttpAdapter adapter) {
+        if (adapter != null) {
+            mHostAdapters.put(host, adapter);
+        } else {
+            mHostAdapters.remove(host);
+        }
+        updateHttpAdapter();
+    }
+
+    private synchronized void updateHttpAdapter() {
+        RoutingHttpAdapter router = new RoutingHttpAdapter(mBaseAdapter, mHostAdapters);
+        HttpAdapter adapter = mMemoryCache != null || mDiskCache != null
+                ? new CachingHttpAdapter(router, mMemoryCache, mDiskCache)
+                : router;
+        mRouter = router;
+        mHttpAdapter = mCoalescing ? new CoalescingHttpAdapter(adapter) : adapter;
+    }
+
+    /**
+     * Fails queued requests, and those waiting for a retry, with FETCH_ABORTED and releases the
+     * worker threads once the running ones finish. The next {@link #getInstance(Context)} creates
+     * a fresh module.
+     */
+    public void shutdown() {
+        synchronized (StreamModule.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        mDispatcher.shutdown();
+    }
+
+    /**
+     * Cancels the request {@link #fetch(String, ModuleResultListener)} returned {@code id} for;
+     * its listener gets a FETCH_ABORTED error unless it already completed.
+     *
+     * @return false if it is not in flight anymore
+     */
+    public boolean cancel(int id) {
+        Call call;
+        synchronized (mCalls) {
+            call = mCalls.get(id);
+        }
+        if (call == null) {
+            return false;
+        }
+        call.signal.cancel();
+        return true;
+    }
+
+    /**
+     * Cancels every request in flight fetched with {@code tag}.
+     *
+     * @return number of requests canceled
+     */
+    public int cancelAll(String tag) {
+        List<Call> calls = new ArrayList<>();
+        synchronized (mCalls) {
+            for (Call call : mCalls.values()) {
+                if (tag != null && tag.equals(call.tag)) {
+                    calls.add(call);
+                }
+            }
+        }
+        for (Call call : calls) {
+            call.signal.cancel();
+        }
+        return calls.size();
+    }
+
+    /**
+     * @return id of the request for {@link #cancel(int)}, -1 if the options are invalid
+     */
+    public int fetch(String optionsStr, final ModuleResultListener ModuleResultListener){
+        if (ModuleResultListener == null)return -1;
         JSONObject optionsObj = null;
         try {
             optionsObj = JSON.parseObject(optionsStr);
         }catch (JSONException e){
             Log.e("", e.getMessage());
-            ModuleResultListener.onResult(Util.getError(Constant.FETCH_INVALID_ARGUMENT, 1));
+        }
+        return fetch(optionsObj, ModuleResultListener);
+    }
+
+    /**
+     * Fetches every options object of the JSON array {@code optionsArrayStr} at once, see
+     * {@link #fetchAll(String, long, ModuleResultListener)}.
+     */
+    public int[] fetchAll(String optionsArrayStr, ModuleResultListener listener) {
+        return fetchAll(optionsArrayStr, 0, listener);
+    }
+
+    /**
+     * Fetches every options object of the JSON array {@code optionsArrayStr} at once, each the
+     * way {@link #fetch(String, ModuleResultListener)} would, with the array parsed in one go.
+     * {@code listener} gets the list of results, in the order of the array, once all of them
+     * completed; a {@link ModuleBatchListener} gets each result as soon as it is there instead.
+     * An invalid entry only fails its own result.
+     *
+     * @param deadlineMs time the whole batch may take, requests still running by then fail with
+     *                   FETCH_TIMEOUT; 0 for none
+     * @return ids of the requests for {@link #cancel(int)}, -1 for the invalid ones; null if
+     * {@code optionsArrayStr} is not a JSON array
+     */
+    public int[] fetchAll(String optionsArrayStr, long deadlineMs, final ModuleResultListener listener) {
+        if (listener == null) return null;
+        JSONArray optionsArray = null;
+        try {
+            optionsArray = JSON.parseArray(optionsArrayStr);
+        } catch (JSONException e) {
+            Log.e("", e.getMessage());
+        }
+        if (optionsArray == null) {
+            listener.onResult(Util.getError(Constant.FETCH_INVALID_ARGUMENT, 1));
+            return null;
         }
 
+        final Batch batch = new Batch(optionsArray.size(), listener);
+        int[] ids = new int[optionsArray.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Object item = optionsArray.get(i);
+            JSONObject optionsObj = item instanceof JSONObject ? (JSONObject) item : null;
+            if (optionsObj != null && deadlineMs > 0) {
+                long deadline = optionsObj.getLongValue("deadline");
+                if (deadline <= 0 || deadline > deadlineMs) {
+                    // all requests start now, so the batch deadline is the same for each
+                    optionsObj.put("deadline", deadlineMs);
+                }
+            }
+            final int index = i;
+            ids[i] = fetch(optionsObj, new ModuleResultListener() {
+                @Override
+                public void onResult(Object o) {
+                    batch.completed(index, o);
+                }
+            });
+        }
+        batch.start();
+        return ids;
+    }
+
+    private int fetch(JSONObject optionsObj, final ModuleResultListener ModuleResultListener) {
+        final CallbackQueue callbacks = new CallbackQueue(mCallbackExecutor);
         boolean invaildOption = optionsObj==null || optionsObj.getString("url")==null;
         if(invaildOption){
-            if(ModuleResultListener != null) {
-                ModuleResultListener.onResult(Util.getError(Constant.FETCH_INVALID_ARGUMENT, 1));
-            }
-            return;
+            return invalidArgument(callbacks, ModuleResultListener);
         }
 
         String method = optionsObj.getString("method");
@@ -69,6 +407,28 @@ public class StreamModule {
         String body = optionsObj.getString("body");
         final String type = optionsObj.getString("type");
         int timeout = optionsObj.getIntValue("timeout");
+        final ModuleStreamListener streamListener = optionsObj.getBooleanValue("stream")
+                && ModuleResultListener instanceof ModuleStreamListener
+                ? (ModuleStreamListener) ModuleResultListener : null;
+
+        String bodyFile = optionsObj.getString("bodyFile");
+        if (!TextUtils.isEmpty(bodyFile)) {
+            // pages may only upload files under the root, never the app's private ones
+            File uploadFile = Util.resolveInRoot(bodyFile);
+            if (uploadFile == null) {
+                return invalidArgument(callbacks, ModuleResultListener);
+            }
+            bodyFile = uploadFile.getPath();
+        }
+        String saveTo = optionsObj.getString("saveTo");
+        if (!TextUtils.isEmpty(saveTo)) {
+            // pages may only write under the root, the .tmp file included
+            File saveFile = Util.resolveInRoot(saveTo);
+            if (saveFile == null) {
+                return invalidArgument(callbacks, ModuleResultListener);
+            }
+            saveTo = saveFile.getPath();
+        }
 
         Options.Builder builder = new Options.Builder()
                 .setMethod(!"GET".equals(method)
@@ -79,46 +439,155 @@ public class StreamModule {
                         &&!"PATCH".equals(method)?"GET":method)
                 .setUrl(url)
                 .setBody(body)
+                .setBody(TextUtils.isEmpty(bodyFile) ? null : RequestBody.create(new File(bodyFile)))
                 .setType(type)
-                .setTimeout(timeout);
+                .setTimeout(timeout)
+                .setStream(streamListener != null)
+                .setSaveTo(TextUtils.isEmpty(saveTo) ? null : saveTo)
+                .setResumable(optionsObj.getBooleanValue("resumable"))
+                .setSegments(optionsObj.getIntValue("segments"))
+                .setMinSegmentSize(optionsObj.getLongValue("minSegmentSize"))
+                .setGzip(optionsObj.getBooleanValue("gzip"))
+                .setResponseType(optionsObj.getString("responseType"))
+                .setTag(optionsObj.getString("tag"))
+                .setPriority(optionsObj.getString("priority"))
+                .setIdempotent(optionsObj.getBooleanValue("idempotent"))
+                .setConnectTimeout(optionsObj.getIntValue("connectTimeout"))
+                .setReadTimeout(optionsObj.getIntValue("readTimeout"))
+                .setDeadline(optionsObj.getLongValue("deadline"));
+
+        MultipartBody multipartBody;
+        try {
+            multipartBody = extractMultipart(optionsObj.get("formData"), optionsObj.get("files"));
+        } catch (IllegalArgumentException e) {
+            return invalidArgument(callbacks, ModuleResultListener);
+        }
+        if (multipartBody != null) {
+            builder.setBody(multipartBody);
+        }
 
-        extractHeaders(headers, builder, type);
+        extractHeaders(headers, builder, multipartBody != null ? null : type);
         final Options options = builder.createOptions();
-        sendRequest(options, new ResponseCallback() {
+        final ModuleProgressListener progressListener = ModuleResultListener instanceof ModuleProgressListener
+                ? (ModuleProgressListener) ModuleResultListener : null;
+        return fetch(options, streamListener, progressListener, callbacks, new ModuleFetchListener() {
             @Override
-            public void onResponse(Response response, Map<String, String> headers) {
-                if (ModuleResultListener != null) {
-                    if (response.errorCode < 0) {
-                        ModuleResultListener.onResult(Util.getError(Constant.FETCH_NETWORK_ERROR, Constant.FETCH_NETWORK_ERROR_CODE));
-                        return;
+            public void onResult(FetchResult result) {
+                // built here, on the worker thread that read the body
+                final HashMap<String, Object> map = result.toMap();
+                if (mLoggingEnabled && result.getError() == null) {
+                    Log.d(result.isOk() ? "network fetch true" : "network fetch false", map.toString());
+                }
+                callbacks.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ModuleResultListener.onResult(map);
                     }
-                    String ori_data = new String(response.originalData);
-
-                    HashMap<String, Object> result = new HashMap<String, Object>();
-                    result.put("status", response.statusCode);
-                    result.put("statusText", response.statusMessage);
-
-                    if (headers != null)
-                        result.put("headers", headers);
+                });
+            }
+        });
+    }
 
-                    if (response.errorCode > 0) {
-                        result.put("ok", false);
-                        if (!TextUtils.isEmpty(ori_data)) result.put("data", ori_data);
-                        Log.d("network fetch false", result.toString());
-                        ModuleResultListener.onResult(result);
-                        return;
+    /**
+     * Fetches with options built in native code, without going through JSON; the options are
+     * sent as they are, with no platform or Content-Type header added. The result's data is
+     * only decoded if asked for.
+     *
+     * @return id of the request for {@link #cancel(int)}, -1 if the options have no url
+     */
+    public int fetch(Options options, final ModuleFetchListener listener) {
+        if (listener == null) return -1;
+        final CallbackQueue callbacks = new CallbackQueue(mCallbackExecutor);
+        if (options == null || options.getUrl() == null) {
+            callbacks.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(FetchResult.error(Constant.FETCH_INVALID_ARGUMENT, 1));
+                }
+            });
+            return -1;
+        }
+        return fetch(options, null, null, callbacks, new ModuleFetchListener() {
+            @Override
+            public void onResult(final FetchResult result) {
+                callbacks.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(result);
                     }
+                });
+            }
+        });
+    }
 
-                    result.put("ok", true);
-                    if (!TextUtils.isEmpty(ori_data)) result.put("data", ori_data);
-                    Log.d("network fetch true", result.toString());
-                    ModuleResultListener.onResult(result);
-                }
+    private static int invalidArgument(CallbackQueue callbacks, final ModuleResultListener listener) {
+        callbacks.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onResult(Util.getError(Constant.FETCH_INVALID_ARGUMENT, 1));
             }
         });
+        return -1;
+    }
 
+    /**
+     * @param callbacks queue the progress callbacks go through
+     * @param listener called on the worker thread
+     */
+    private int fetch(final Options options, ModuleStreamListener streamListener,
+                      ModuleProgressListener progressListener, CallbackQueue callbacks,
+                      final ModuleFetchListener listener) {
+        return sendRequest(options, streamListener, progressListener, callbacks, new ResponseCallback() {
+            @Override
+            public void onResponse(Response response, Map<String, String> headers) {
+                listener.onResult(FetchResult.of(response, headers, options.getResponseType()));
+            }
+        });
     }
 
+    /**
+     * multipart/form-data body from {@code formData: {name: value}} and
+     * {@code files: [{name, path, filename, type}]}
+     * @return null if there is neither form data nor a file to send
+     * @throws IllegalArgumentException if a value is null, a file entry is not an object or its
+     * path is not a readable file under the root
+     */
+    private MultipartBody extractMultipart(Object formDataObj, Object filesObj) {
+        if (formDataObj != null && !(formDataObj instanceof JSONObject)
+                || filesObj != null && !(filesObj instanceof JSONArray)) {
+            throw new IllegalArgumentException("formData must be an object and files an array");
+        }
+        JSONObject formData = (JSONObject) formDataObj;
+        JSONArray files = (JSONArray) filesObj;
+        if ((formData == null || formData.isEmpty()) && (files == null || files.isEmpty())) {
+            return null;
+        }
+        MultipartBody.Builder builder = new MultipartBody.Builder();
+        if (formData != null) {
+            for (String key : formData.keySet()) {
+                builder.addFormDataPart(key, formData.getString(key));
+            }
+        }
+        if (files != null) {
+            for (int i = 0; i < files.size(); i++) {
+                if (!(files.get(i) instanceof JSONObject)) {
+                    throw new IllegalArgumentException("files[" + i + "] is not an object");
+                }
+                JSONObject file = files.getJSONObject(i);
+                File path = Util.resolveInRoot(file.getString("path"));
+                if (path == null || !path.isFile() || !path.canRead()) {
+                    throw new IllegalArgumentException("files[" + i + "] is not a readable file under the root");
+                }
+                builder.addFormDataPart(TextUtils.isEmpty(file.getString("name")) ? "file" : file.getString("name"),
+                        file.getString("filename"), path, file.getString("type"));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param type request content type, null to leave it to the body
+     */
     private void extractHeaders(JSONObject headers, Options.Builder builder, String type){
         if(headers != null){
             for (String key : headers.keySet()) {
@@ -126,6 +595,9 @@ public class StreamModule {
             }
         }
         builder.putHeader("platform", "android");
+        if (type == null) {
+            return;
+        }
         switch (type) {
             case "text":
                 builder.putHeader("Content-Type", "text/plain");
@@ -139,13 +611,46 @@ public class StreamModule {
         }
     }
 
-    private void sendRequest(Options options, ResponseCallback callback){
+    /**
+     * @return id of the request
+     */
+    private int sendRequest(Options options, ModuleStreamListener streamListener,
+                            ModuleProgressListener progressListener, CallbackQueue callbacks,
+                            final ResponseCallback callback){
+        final int id = mNextRequestId.getAndIncrement();
+        Call call = new Call(options.getTag());
+        synchronized (mCalls) {
+            mCalls.put(id, call);
+        }
+
         Request request = new Request();
+        request.cancelSignal = call.signal;
         request.method = options.getMethod();
 //        request.url = mWXSDKInstance.rewriteUri(Uri.parse(options.getUrl()), URIAdapter.REQUEST).toString();
         request.url = options.getUrl();
         request.body = options.getBody();
+        // encoded once, for the upload progress total as well as for sending
+        request.requestBody = options.getRequestBody() != null ? options.getRequestBody()
+                : request.body != null ? RequestBody.create(request.body) : null;
+        request.gzip = options.isGzip();
+        request.priority = options.getPriority();
+        request.idempotent = options.isIdempotent();
         request.timeoutMs = options.getTimeout();
+        request.connectTimeoutMs = options.getConnectTimeout();
+        request.readTimeoutMs = options.getReadTimeout();
+        if (options.getDeadline() > 0) {
+            request.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getDeadline());
+        }
+        // chunks nobody listens to would be dropped
+        request.stream = options.isStream() && streamListener != null;
+        request.saveTo = options.getSaveTo();
+        request.resumable = options.isResumable();
+        if (options.getSegments() > 0) {
+            request.segments = options.getSegments();
+        }
+        if (options.getMinSegmentSize() > 0) {
+            request.minSegmentSize = options.getMinSegmentSize();
+        }
 
         if(options.getHeaders()!=null)
             if (request.paramMap == null) {
@@ -155,11 +660,101 @@ public class StreamModule {
             }
 
 
-        HttpAdapter adapter = new DefaultHttpAdapter();
-        if (adapter != null) {
-            adapter.sendRequest(request, new StreamHttpListener(callback));
-        }else{
+        // for adapters that do not measure the request themselves
+        final RequestMetrics fallbackMetrics = new RequestMetrics(request);
+        ResponseCallback untrack = new ResponseCallback() {
+            @Override
+            public void onResponse(Response response, Map<String, String> headers) {
+                synchronized (mCalls) {
+                    mCalls.remove(id);
+                }
+                RequestMetrics metrics = response.metrics;
+                if (metrics == null) {
+                    metrics = fallbackMetrics;
+                    metrics.finish(response);
+                }
+                reportMetrics(metrics);
+                callback.onResponse(response, headers);
+            }
+        };
+
+        HttpAdapter adapter = mHttpAdapter;
+        if (adapter == null) {
             Log.e("WXStreamModule","No HttpAdapter found,request failed.");
+            return id;
+        }
+        StreamHttpListener listener = new StreamHttpListener(untrack, streamListener, progressListener, callbacks,
+                new ProgressThrottle(mProgressIntervalMs, mProgressStepPercent), request);
+        // ranges are fetched on the connections of the adapter the host routes to, which has to
+        // be a DefaultHttpAdapter; any other adapter gets the whole request
+        HttpAdapter route = mRouter.adapterFor(request.url);
+        if (options.getSegments() > 1 && route instanceof DefaultHttpAdapter
+                && SegmentedDownloader.canSegment(request)) {
+            new SegmentedDownloader((DefaultHttpAdapter) route).download(request, listener);
+        } else {
+            adapter.sendRequest(request, listener);
+        }
+        return id;
+    }
+
+    private void reportMetrics(RequestMetrics metrics) {
+        mMetrics.onRequestFinished(metrics);
+        EventListener listener = mEventListener;
+        if (listener != null) {
+            try {
+                listener.onRequestFinished(metrics);
+            } catch (RuntimeException e) {
+                Log.e("StreamModule", "event listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Results of a {@link #fetchAll(String, long, ModuleResultListener)} call, handed over once
+     * all are in, or one by one to a {@link ModuleBatchListener}.
+     */
+    private static class Batch {
+        private final ModuleResultListener mListener;
+        private final ModuleBatchListener mItemListener;
+        private final List<Object> mResults;
+        private int mRemaining;
+
+        Batch(int size, ModuleResultListener listener) {
+            mListener = listener;
+            mItemListener = listener instanceof ModuleBatchListener ? (ModuleBatchListener) listener : null;
+            mResults = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                mResults.add(null);
+            }
+            // held until every request is dispatched, results may come back synchronously
+            mRemaining = size + 1;
+        }
+
+        void completed(int index, Object result) {
+            synchronized (this) {
+                mResults.set(index, result);
+            }
+            if (mItemListener != null) {
+                mItemListener.onItem(index, result);
+            }
+            countDown();
+        }
+
+        void start() {
+            countDown();
+        }
+
+        private void countDown() {
+            synchronized (this) {
+                if (--mRemaining > 0) return;
+            }
+            if (mItemListener != null) {
+                HashMap<String, Object> result = new HashMap<>();
+                result.put("count", mResults.size());
+                mItemListener.onResult(result);
+            } else {
+                mListener.onResult(mResults);
+            }
         }
     }
 
@@ -167,13 +762,58 @@ public class StreamModule {
         void onResponse(Response response, Map<String, String> headers);
     }
 
-    private static class StreamHttpListener implements HttpAdapter.OnHttpListener {
+    private static class Call {
+        final String tag;
+        final CancelSignal signal = new CancelSignal();
+
+        Call(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static class StreamHttpListener implements HttpAdapter.OnHttpChunkListener {
         private ResponseCallback mCallback;
-        private Map<String,Object> mResponse = new HashMap<>();
+        private ModuleStreamListener mStreamListener;
+        private ModuleProgressListener mProgressListener;
+        private final CallbackQueue mCallbacks;
+        private final ProgressThrottle mProgressThrottle;
+        private ProgressThrottle mUploadThrottle;
+        private CallbackQueue.Progress mProgress;
+        private CallbackQueue.Progress mUploadProgress;
         private Map<String,String> mRespHeaders;
-
-        private StreamHttpListener(ResponseCallback callback) {
+        private long mContentLength = -1;
+        private long mUploadLength = -1;
+
+        /**
+         * @param throttle for the download progress, copied for the upload
+         */
+        private StreamHttpListener(ResponseCallback callback, ModuleStreamListener streamListener,
+                                   final ModuleProgressListener progressListener, CallbackQueue callbacks,
+                                   ProgressThrottle throttle, Request request) {
             mCallback = callback;
+            mStreamListener = streamListener;
+            mProgressListener = progressListener;
+            mCallbacks = callbacks;
+            mProgressThrottle = throttle;
+            if (progressListener == null) {
+                return;
+            }
+            mUploadThrottle = throttle.copy();
+            mProgress = new CallbackQueue.Progress() {
+                @Override
+                void deliver(long loaded, long total) {
+                    progressListener.onProgress(loaded, total);
+                }
+            };
+            mUploadProgress = new CallbackQueue.Progress() {
+                @Override
+                void deliver(long sent, long total) {
+                    progressListener.onUploadProgress(sent, total);
+                }
+            };
+            if (request.requestBody != null) {
+                mUploadLength = request.requestBody.contentLength();
+            }
         }
 
 
@@ -183,14 +823,13 @@ public class StreamModule {
 
         @Override
         public void onHttpUploadProgress(int uploadProgress) {
-
+            if (mProgressListener != null && mUploadThrottle.update(uploadProgress, mUploadLength)) {
+                mCallbacks.postProgress(mUploadProgress, uploadProgress, mUploadLength);
+            }
         }
 
         @Override
         public void onHeadersReceived(int statusCode,Map<String,List<String>> headers) {
-            mResponse.put("readyState",2);
-            mResponse.put("status",statusCode);
-
             Iterator<Map.Entry<String,List<String>>> it = headers.entrySet().iterator();
             Map<String,String> simpleHeaders = new HashMap<>();
             while(it.hasNext()){
@@ -199,18 +838,54 @@ public class StreamModule {
                     simpleHeaders.put(entry.getKey()==null?"_":entry.getKey(),entry.getValue().get(0));
             }
 
-            mResponse.put("headers",simpleHeaders);
             mRespHeaders = simpleHeaders;
+            String contentRange = null;
+            for (Map.Entry<String,String> entry : simpleHeaders.entrySet()) {
+                if ("Content-Length".equalsIgnoreCase(entry.getKey())) {
+                    mContentLength = parseLength(entry.getValue());
+                } else if ("Content-Range".equalsIgnoreCase(entry.getKey())) {
+                    contentRange = entry.getValue();
+                }
+            }
+            if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                // resumed download, report against the whole body
+                mContentLength = parseLength(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+            }
+        }
+
+        private static long parseLength(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
         }
 
         @Override
         public void onHttpResponseProgress(int loadedLength) {
-            mResponse.put("length",loadedLength);
+            if (mProgressListener != null && mProgressThrottle.update(loadedLength, mContentLength)) {
+                mCallbacks.postProgress(mProgress, loadedLength, mContentLength);
+            }
+        }
 
+        @Override
+        public void onHttpResponseChunk(byte[] chunk, int offset, int length) {
+            if (mStreamListener != null) {
+                mStreamListener.onChunk(chunk, offset, length);
+            }
         }
 
         @Override
         public void onHttpFinish(final Response response) {
+            if (mProgressListener != null) {
+                // the last progress, if it was held back, comes before the result
+                if (mUploadThrottle.flush()) {
+                    mCallbacks.postProgress(mUploadProgress, mUploadThrottle.latest(), mUploadThrottle.latestTotal());
+                }
+                if (mProgressThrottle.flush()) {
+                    mCallbacks.postProgress(mProgress, mProgressThrottle.latest(), mProgressThrottle.latestTotal());
+                }
+            }
             //compatible with old sendhttp
             if(mCallback!=null){
                 mCallback.onResponse(response, mRespHeaders);
@@ -91,6 +91,24 @@ public class Util {
         return file.getAbsolutePath();
     }
 
+    /**
+     * Resolves a path coming from JS, relative to {@link #getRootFile()} unless absolute.
+     *
+     * @return the canonical file, null if it is empty or does not lie under the root once
+     * {@code ..} segments and links are resolved
+     */
+    public static File resolveInRoot(String path) {
+        if (TextUtils.isEmpty(path)) return null;
+        try {
+            File root = getRootFile().getCanonicalFile();
+            File file = (path.startsWith("/") ? new File(path) : new File(root, path)).getCanonicalFile();
+            String prefix = root.getPath().endsWith(File.separator) ? root.getPath() : root.getPath() + File.separator;
+            return file.getPath().startsWith(prefix) ? file : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public static boolean isTel(String str){
         if (TextUtils.isEmpty(str)) return false;
         return isMobile(str) || isPhone(str);
@@ -0,0 +1,96 @@
+package com.nat.stream.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Pool of read buffers in power of two size classes from 2 KB to 64 KB, so steady traffic
+ * reuses the same arrays instead of allocating new ones per request. Larger requests are
+ * allocated and never pooled.
+ */
+
+public final class BufferPool {
+    public static final long DEFAULT_MAX_SIZE = 256 * 1024;
+    private static final int MIN_CLASS_SIZE = 2 * 1024;
+    private static final int MAX_CLASS_SIZE = 64 * 1024;
+
+    /**
+     * Pool shared by all adapters
+     */
+    public static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_SIZE);
+
+    private final long mMaxSize;
+    private long mSize;
+    private final List<ArrayDeque<byte[]>> mFree = new ArrayList<>();
+
+    /**
+     * @param maxSize max total bytes kept in the pool
+     */
+    public BufferPool(long maxSize) {
+        mMaxSize = maxSize;
+        for (int size = MIN_CLASS_SIZE; size <= MAX_CLASS_SIZE; size <<= 1) {
+            mFree.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * A buffer of at least {@code minSize} bytes, to be handed back with {@link #release(byte[])}.
+     */
+    public byte[] acquire(int minSize) {
+        int index = classIndex(minSize);
+        if (index < 0) {
+            return new byte[minSize];
+        }
+        synchronized (this) {
+            byte[] buffer = mFree.get(index).poll();
+            if (buffer != null) {
+                mSize -= buffer.length;
+                return buffer;
+            }
+        }
+        return new byte[MIN_CLASS_SIZE << index];
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire(int)}; it must not be used afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int index = classIndex(buffer.length);
+        if (index < 0 || MIN_CLASS_SIZE << index != buffer.length) {
+            return;
+        }
+        synchronized (this) {
+            if (mSize + buffer.length <= mMaxSize) {
+                mFree.get(index).push(buffer);
+                mSize += buffer.length;
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> free : mFree) {
+            free.clear();
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Index of the smallest class holding {@code size} bytes, -1 if above the largest.
+     */
+    private static int classIndex(int size) {
+        if (size > MAX_CLASS_SIZE) return -1;
+        int index = 0;
+        while (MIN_CLASS_SIZE << index < size) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,267 @@
+package com.nat.stream.http;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * A cached 200 response with the freshness lifetime derived from its Cache-Control, Expires and
+ * Age headers. Stale entries with an ETag or Last-Modified can be revalidated with a
+ * conditional request.
+ */
+
+public class CacheEntry {
+    public final int statusCode;
+    public final Map<String, List<String>> headers;
+    public final byte[] body;
+    /**
+     * Wall clock time (ms) after which the entry is stale
+     */
+    public final long expiresAt;
+    /**
+     * Request header names and values the response varies on, sorted by name
+     */
+    public final List<String> vary;
+
+    public CacheEntry(int statusCode, Map<String, List<String>> headers, byte[] body, long expiresAt, List<String> vary) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.expiresAt = expiresAt;
+        this.vary = vary;
+    }
+
+    public boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    public String etag() {
+        return first(headers, "ETag");
+    }
+
+    public String lastModified() {
+        return first(headers, "Last-Modified");
+    }
+
+    public boolean hasValidators() {
+        return etag() != null || lastModified() != null;
+    }
+
+    /**
+     * This entry refreshed by a 304 response: its headers replace the stored ones, except the
+     * ones describing the stored body, and its freshness applies from {@code now}.
+     */
+    public CacheEntry revalidated(Map<String, List<String>> notModifiedHeaders, long now) {
+        Map<String, List<String>> merged = new LinkedHashMap<>();
+        merged.putAll(headers);
+        for (Map.Entry<String, List<String>> header : notModifiedHeaders.entrySet()) {
+            String name = header.getKey();
+            if (name == null || "Content-Length".equalsIgnoreCase(name)
+                    || "Content-Encoding".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name)) {
+                continue;
+            }
+            Iterator<String> it = merged.keySet().iterator();
+            while (it.hasNext()) {
+                String existing = it.next();
+                if (existing != null && existing.equalsIgnoreCase(name)) it.remove();
+            }
+            merged.put(name, header.getValue());
+        }
+        merged = Collections.unmodifiableMap(merged);
+        return new CacheEntry(statusCode, merged, body, expiresAt(merged, now), vary);
+    }
+
+    public Response toResponse() {
+        Response response = new Response();
+        response.statusCode = statusCode;
+        response.statusMessage = "";
+        response.originalData = body;
+        response.errorCode = 0;
+        return response;
+    }
+
+    /**
+     * {@code responseHeaders} to store with {@code body}: without the Content-Encoding it was
+     * decoded from, if {@code decoded}, nor a Transfer-Encoding, and with the length of the
+     * stored body.
+     */
+    static Map<String, List<String>> storedHeaders(Map<String, List<String>> responseHeaders, byte[] body,
+                                                   boolean decoded) {
+        Map<String, List<String>> stored = new LinkedHashMap<>();
+        List<String> length = Collections.singletonList(String.valueOf(body.length));
+        boolean hasLength = false;
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            String name = header.getKey();
+            if ("Transfer-Encoding".equalsIgnoreCase(name) || decoded && "Content-Encoding".equalsIgnoreCase(name)) {
+                continue;
+            }
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                stored.put(name, length);
+                hasLength = true;
+            } else {
+                stored.put(name, header.getValue());
+            }
+        }
+        if (!hasLength) {
+            stored.put("Content-Length", length);
+        }
+        return Collections.unmodifiableMap(stored);
+    }
+
+    /**
+     * Cache key of {@code request}, null if it must bypass the cache.
+     */
+    static String baseKey(Request request) {
+        if (request.method != null && !"GET".equals(request.method)) return null;
+        if (request.stream || request.saveTo != null) return null;
+        String cacheControl = header(request.paramMap, "Cache-Control");
+        if (cacheControl != null && (cacheControl.contains("no-store") || cacheControl.contains("no-cache"))) {
+            return null;
+        }
+        return "GET " + request.url;
+    }
+
+    /**
+     * Base key extended with the request's values of the {@code Vary} header names.
+     */
+    static String key(String baseKey, List<String> vary) {
+        if (vary == null || vary.isEmpty()) return baseKey;
+        StringBuilder key = new StringBuilder(baseKey);
+        for (String value : vary) {
+            key.append('\n').append(value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Sorted {@code name:value} pairs of the request headers listed in the response's Vary
+     * header; null if it varies on everything ({@code Vary: *}).
+     */
+    static List<String> varyValues(Map<String, String> requestHeaders, List<String> varyNames) {
+        List<String> values = new ArrayList<>();
+        for (String name : varyNames) {
+            if ("*".equals(name)) return null;
+            String value = header(requestHeaders, name);
+            values.add(name.toLowerCase(Locale.US) + ":" + (value == null ? "" : value));
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    static List<String> varyNames(Map<String, List<String>> responseHeaders) {
+        List<String> names = new ArrayList<>();
+        for (String value : headerValues(responseHeaders, "Vary")) {
+            for (String name : value.split(",")) {
+                name = name.trim();
+                if (name.length() > 0) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Whether a response may be stored at all, false for no-store and private ones.
+     */
+    static boolean isStorable(Map<String, List<String>> responseHeaders) {
+        for (String value : headerValues(responseHeaders, "Cache-Control")) {
+            for (String directive : value.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store") || directive.equals("private")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Expiry time of a response received at {@code now}; {@code now} itself, i.e. stale right
+     * away, for no-cache responses and responses without explicit freshness.
+     */
+    static long expiresAt(Map<String, List<String>> responseHeaders, long now) {
+        long maxAge = -1;
+        for (String value : headerValues(responseHeaders, "Cache-Control")) {
+            for (String directive : value.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring("max-age=".length()));
+                }
+            }
+        }
+        long age = 0;
+        String ageValue = first(responseHeaders, "Age");
+        if (ageValue != null) {
+            age = Math.max(parseSeconds(ageValue), 0);
+        }
+        if (maxAge >= 0) {
+            return maxAge > age ? now + (maxAge - age) * 1000 : now;
+        }
+        String expires = first(responseHeaders, "Expires");
+        if (expires != null) {
+            Date expiresDate = parseDate(expires);
+            Date date = parseDate(first(responseHeaders, "Date"));
+            if (expiresDate == null) return now;
+            // relative to the server clock when it sent its Date
+            long lifetime = expiresDate.getTime() - (date != null ? date.getTime() : now);
+            return lifetime > age * 1000 ? now + lifetime - age * 1000 : now;
+        }
+        return now;
+    }
+
+    static Date parseDate(String value) {
+        if (value == null) return null;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String first(Map<String, List<String>> headers, String name) {
+        List<String> values = headerValues(headers, name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    static List<String> headerValues(Map<String, List<String>> headers, String name) {
+        if (headers == null) return Collections.emptyList();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null) {
+                return entry.getValue();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        if (headers == null) return null;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,245 @@
+package com.nat.stream.http;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * {@link HttpAdapter} that answers GET requests from a {@link MemoryCache} and/or a
+ * {@link DiskCache} while the cached response is fresh, revalidates stale ones carrying an
+ * ETag or Last-Modified with If-None-Match / If-Modified-Since (serving the cached body on a
+ * 304), and stores cacheable 200 responses coming back from the wrapped adapter. Disk reads and
+ * writes run on a single background thread, never on the caller's.
+ */
+
+public class CachingHttpAdapter implements HttpAdapter {
+    private final HttpAdapter mDelegate;
+    private final MemoryCache mMemoryCache;
+    private final DiskCache mDiskCache;
+    private final Executor mDiskExecutor;
+
+    public CachingHttpAdapter(HttpAdapter delegate, MemoryCache memoryCache) {
+        this(delegate, memoryCache, null);
+    }
+
+    /**
+     * @param memoryCache may be null if {@code diskCache} is not
+     * @param diskCache may be null if {@code memoryCache} is not
+     */
+    public CachingHttpAdapter(HttpAdapter delegate, MemoryCache memoryCache, DiskCache diskCache) {
+        if (delegate == null || memoryCache == null && diskCache == null) {
+            throw new IllegalArgumentException("delegate == null || no cache");
+        }
+        mDelegate = delegate;
+        mMemoryCache = memoryCache;
+        mDiskCache = diskCache;
+        if (diskCache != null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "nat-stream-disk-cache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            mDiskExecutor = executor;
+        } else {
+            mDiskExecutor = null;
+        }
+    }
+
+    public MemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    public DiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    @Override
+    public void sendRequest(final Request request, final OnHttpListener listener) {
+        final String baseKey = CacheEntry.baseKey(request);
+        if (baseKey == null) {
+            if (request.method != null && !"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+                // unsafe methods invalidate what is cached for the url
+                invalidate("GET " + request.url);
+            }
+            mDelegate.sendRequest(request, listener);
+            return;
+        }
+        final RequestMetrics metrics = new RequestMetrics(request);
+        final CacheEntry memoryEntry = mMemoryCache == null ? null : mMemoryCache.get(baseKey, request.paramMap);
+        if (memoryEntry != null && memoryEntry.isFresh(System.currentTimeMillis())) {
+            deliver(memoryEntry, metrics, listener);
+            return;
+        }
+        if (mDiskCache == null) {
+            sendToNetwork(baseKey, request, memoryEntry, listener);
+            return;
+        }
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                CacheEntry diskEntry = mDiskCache.get(baseKey, request.paramMap);
+                if (diskEntry != null && diskEntry.isFresh(System.currentTimeMillis())) {
+                    if (mMemoryCache != null) {
+                        mMemoryCache.put(baseKey, CacheEntry.varyNames(diskEntry.headers), diskEntry);
+                    }
+                    deliver(diskEntry, metrics, listener);
+                    return;
+                }
+                sendToNetwork(baseKey, request, diskEntry != null ? diskEntry : memoryEntry, listener);
+            }
+        });
+    }
+
+    private void sendToNetwork(String baseKey, Request request, CacheEntry stale, OnHttpListener listener) {
+        if (stale == null || !stale.hasValidators()) {
+            mDelegate.sendRequest(request, new CacheWriter(baseKey, request, null, listener));
+            return;
+        }
+        Request conditional = request.copy();
+        if (stale.etag() != null) {
+            conditional.paramMap.put("If-None-Match", stale.etag());
+        }
+        if (stale.lastModified() != null) {
+            conditional.paramMap.put("If-Modified-Since", stale.lastModified());
+        }
+        mDelegate.sendRequest(conditional, new CacheWriter(baseKey, request, stale, listener));
+    }
+
+    private void store(final String baseKey, final List<String> varyNames, final CacheEntry entry) {
+        if (mMemoryCache != null) {
+            mMemoryCache.put(baseKey, varyNames, entry);
+        }
+        if (mDiskCache != null) {
+            mDiskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDiskCache.put(baseKey, varyNames, entry);
+                }
+            });
+        }
+    }
+
+    private void invalidate(final String baseKey) {
+        if (mMemoryCache != null) {
+            mMemoryCache.remove(baseKey);
+        }
+        if (mDiskCache != null) {
+            mDiskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDiskCache.remove(baseKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param metrics started when the request came in
+     */
+    private static void deliver(CacheEntry entry, RequestMetrics metrics, OnHttpListener listener) {
+        if (listener == null) return;
+        listener.onHttpStart();
+        listener.onHeadersReceived(entry.statusCode, entry.headers);
+        if (entry.body != null) {
+            listener.onHttpResponseProgress(entry.body.length);
+        }
+        Response response = entry.toResponse();
+        metrics.cacheStatus = RequestMetrics.CacheStatus.hit;
+        metrics.finish(response);
+        response.metrics = metrics;
+        listener.onHttpFinish(response);
+    }
+
+    private class CacheWriter implements OnHttpListener {
+        private final String mBaseKey;
+        private final Request mRequest;
+        private final CacheEntry mStale;
+        private final OnHttpListener mListener;
+        private Map<String, List<String>> mHeaders;
+
+        /**
+         * @param stale entry being revalidated, null for a plain request
+         */
+        CacheWriter(String baseKey, Request request, CacheEntry stale, OnHttpListener listener) {
+            mBaseKey = baseKey;
+            mRequest = request;
+            mStale = stale;
+            mListener = listener;
+        }
+
+        @Override
+        public void onHttpStart() {
+            if (mListener != null) mListener.onHttpStart();
+        }
+
+        @Override
+        public void onHeadersReceived(int statusCode, Map<String, List<String>> headers) {
+            mHeaders = headers;
+            if (statusCode == 304 && mStale != null) {
+                // reported with the cached response once it is finished
+                return;
+            }
+            if (mListener != null) mListener.onHeadersReceived(statusCode, headers);
+        }
+
+        @Override
+        public void onHttpUploadProgress(int uploadProgress) {
+            if (mListener != null) mListener.onHttpUploadProgress(uploadProgress);
+        }
+
+        @Override
+        public void onHttpResponseProgress(int loadedLength) {
+            if (mListener != null) mListener.onHttpResponseProgress(loadedLength);
+        }
+
+        @Override
+        public void onHttpFinish(Response response) {
+            long now = System.currentTimeMillis();
+            if (response.statusCode == 304 && mStale != null && mHeaders != null) {
+                CacheEntry entry = mStale.revalidated(mHeaders, now);
+                store(mBaseKey, CacheEntry.varyNames(entry.headers), entry);
+                if (mListener != null) {
+                    Response cached = entry.toResponse();
+                    if (response.metrics != null) {
+                        cached.metrics = response.metrics.copy();
+                        cached.metrics.cacheStatus = RequestMetrics.CacheStatus.revalidated;
+                        cached.metrics.finish(cached);
+                    }
+                    mListener.onHeadersReceived(entry.statusCode, entry.headers);
+                    mListener.onHttpResponseProgress(entry.body == null ? 0 : entry.body.length);
+                    mListener.onHttpFinish(cached);
+                }
+                return;
+            }
+            if (response.metrics != null) {
+                response.metrics.cacheStatus = RequestMetrics.CacheStatus.miss;
+            }
+            // stored first so a request issued from the callback already finds it
+            if (response.statusCode == 200 && response.originalData != null && mHeaders != null
+                    && CacheEntry.isStorable(mHeaders)) {
+                long expiresAt = CacheEntry.expiresAt(mHeaders, now);
+                List<String> varyNames = CacheEntry.varyNames(mHeaders);
+                List<String> vary = CacheEntry.varyValues(mRequest.paramMap, varyNames);
+                // the body is stored as delivered, decoded, so its headers have to describe it
+                CacheEntry entry = new CacheEntry(response.statusCode,
+                        CacheEntry.storedHeaders(mHeaders, response.originalData, response.decoded),
+                        response.originalData, expiresAt, vary);
+                if (vary != null && (expiresAt > now || entry.hasValidators())) {
+                    store(mBaseKey, varyNames, entry);
+                }
+            }
+            if (mListener != null) mListener.onHttpFinish(response);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.nat.stream.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Cancellation flag of a {@link Request}. Adapters register listeners to drop the request from
+ * their queue or disconnect its connection; a canceled request finishes with
+ * {@link Response#canceled} set.
+ */
+
+public final class CancelSignal {
+    private boolean mCanceled;
+    private final List<OnCancelListener> mListeners = new ArrayList<>();
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Cancels and notifies the registered listeners, once; further calls do nothing.
+     */
+    public void cancel() {
+        List<OnCancelListener> listeners;
+        synchronized (this) {
+            if (mCanceled) return;
+            mCanceled = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (OnCancelListener listener : listeners) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * Adds {@code listener}, or calls it right away if already canceled.
+     */
+    public void addOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    public synchronized void removeOnCancelListener(OnCancelListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public interface OnCancelListener {
+        /**
+         * Called on the thread calling {@link #cancel()}, must not block.
+         */
+        void onCancel();
+    }
+}
@@ -0,0 +1,245 @@
+package com.nat.stream.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * {@link HttpAdapter} that lets identical GET / HEAD requests issued while one is already in
+ * flight share its connection: they are attached to the running call and every listener gets
+ * the same callbacks and the same {@link Response}, which must be treated as read only.
+ * Canceling one of them only detaches it; the shared request is canceled with the last one.
+ */
+
+public class CoalescingHttpAdapter implements HttpAdapter {
+    private final HttpAdapter mDelegate;
+    private final Map<String, InFlight> mInFlight = new HashMap<>();
+
+    public CoalescingHttpAdapter(HttpAdapter delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate == null");
+        }
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void sendRequest(Request request, OnHttpListener listener) {
+        String key = key(request);
+        if (key == null) {
+            mDelegate.sendRequest(request, listener);
+            return;
+        }
+        InFlight call;
+        boolean joined;
+        synchronized (mInFlight) {
+            call = mInFlight.get(key);
+            joined = call != null && call.join(listener);
+            if (!joined) {
+                call = new InFlight(key);
+                call.join(listener);
+                mInFlight.put(key, call);
+            }
+        }
+        if (request.cancelSignal != null) {
+            request.cancelSignal.addOnCancelListener(call.new Detach(listener));
+        }
+        if (joined) {
+            return;
+        }
+        Request shared = request.copy();
+        shared.cancelSignal = call.mSignal;
+        mDelegate.sendRequest(shared, call);
+    }
+
+    /**
+     * Number of distinct requests currently in flight through this adapter.
+     */
+    public int inFlightCount() {
+        synchronized (mInFlight) {
+            return mInFlight.size();
+        }
+    }
+
+    /**
+     * Key of an idempotent request without body, null for requests that must not be shared.
+     * Priority, timeouts, deadline and retry eligibility are part of it, as the shared request
+     * is scheduled and fails by those of the first one; requests with a deadline thus only
+     * join one with the very same deadline.
+     */
+    static String key(Request request) {
+        String method = request.method == null ? "GET" : request.method;
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return null;
+        if (request.stream || request.saveTo != null) return null;
+        if (request.body != null || request.requestBody != null) return null;
+        StringBuilder key = new StringBuilder(method).append(' ').append(request.url)
+                .append(' ').append(request.priority)
+                .append(' ').append(request.timeoutMs)
+                .append('/').append(request.connectTimeoutMs)
+                .append('/').append(request.readTimeoutMs)
+                .append(' ').append(request.deadlineNanos)
+                .append(' ').append(request.idempotent);
+        if (request.paramMap != null) {
+            for (Map.Entry<String, String> header : new TreeMap<>(request.paramMap).entrySet()) {
+                key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * The shared request. Its callbacks arrive one after another from the wrapped adapter, so
+     * the state replayed to late joiners is only touched by the delivering thread.
+     */
+    private class InFlight implements OnHttpListener {
+        private final String mKey;
+        private final CancelSignal mSignal = new CancelSignal();
+        private final List<OnHttpListener> mListeners = new ArrayList<>();
+        /**
+         * Listeners that joined since the last callback and have not been caught up yet
+         */
+        private final List<OnHttpListener> mJoining = new ArrayList<>();
+        private int mMembers;
+        private boolean mFinished;
+        private boolean mStarted;
+        private int mStatusCode;
+        private Map<String, List<String>> mHeaders;
+        private int mLoadedLength = -1;
+
+        InFlight(String key) {
+            mKey = key;
+        }
+
+        /**
+         * @return false if the call already finished and a new one has to be sent
+         */
+        synchronized boolean join(OnHttpListener listener) {
+            if (mFinished) {
+                return false;
+            }
+            mMembers++;
+            if (listener != null) {
+                mJoining.add(listener);
+            }
+            return true;
+        }
+
+        /**
+         * Listeners to deliver the next callback to, joining ones first caught up with what
+         * the others have seen so far.
+         */
+        private List<OnHttpListener> listeners() {
+            List<OnHttpListener> joining = null;
+            synchronized (this) {
+                if (!mJoining.isEmpty()) {
+                    joining = new ArrayList<>(mJoining);
+                    mListeners.addAll(mJoining);
+                    mJoining.clear();
+                }
+            }
+            if (joining != null) {
+                for (OnHttpListener listener : joining) {
+                    if (mStarted) listener.onHttpStart();
+                    if (mHeaders != null) listener.onHeadersReceived(mStatusCode, mHeaders);
+                    if (mLoadedLength >= 0) listener.onHttpResponseProgress(mLoadedLength);
+                }
+            }
+            synchronized (this) {
+                return new ArrayList<>(mListeners);
+            }
+        }
+
+        @Override
+        public void onHttpStart() {
+            List<OnHttpListener> listeners = listeners();
+            mStarted = true;
+            for (OnHttpListener listener : listeners) {
+                listener.onHttpStart();
+            }
+        }
+
+        @Override
+        public void onHeadersReceived(int statusCode, Map<String, List<String>> headers) {
+            List<OnHttpListener> listeners = listeners();
+            mStatusCode = statusCode;
+            mHeaders = headers;
+            for (OnHttpListener listener : listeners) {
+                listener.onHeadersReceived(statusCode, headers);
+            }
+        }
+
+        @Override
+        public void onHttpUploadProgress(int uploadProgress) {
+            for (OnHttpListener listener : listeners()) {
+                listener.onHttpUploadProgress(uploadProgress);
+            }
+        }
+
+        @Override
+        public void onHttpResponseProgress(int loadedLength) {
+            List<OnHttpListener> listeners = listeners();
+            mLoadedLength = loadedLength;
+            for (OnHttpListener listener : listeners) {
+                listener.onHttpResponseProgress(loadedLength);
+            }
+        }
+
+        @Override
+        public void onHttpFinish(Response response) {
+            synchronized (mInFlight) {
+                synchronized (this) {
+                    mFinished = true;
+                }
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+            }
+            for (OnHttpListener listener : listeners()) {
+                listener.onHttpFinish(response);
+            }
+        }
+
+        /**
+         * Detaches a canceled member, and cancels the shared request once nobody is left.
+         */
+        private class Detach implements CancelSignal.OnCancelListener {
+            private final OnHttpListener mListener;
+
+            Detach(OnHttpListener listener) {
+                mListener = listener;
+            }
+
+            @Override
+            public void onCancel() {
+                boolean last;
+                synchronized (mInFlight) {
+                    synchronized (InFlight.this) {
+                        if (mFinished) return;
+                        if (mListener != null && !mListeners.remove(mListener)) {
+                            mJoining.remove(mListener);
+                        }
+                        last = --mMembers == 0;
+                        if (last) mFinished = true;
+                    }
+                    if (last && mInFlight.get(mKey) == InFlight.this) {
+                        mInFlight.remove(mKey);
+                    }
+                }
+                if (mListener != null) {
+                    Response response = new Response();
+                    response.statusCode = -1;
+                    response.errorCode = -1;
+                    response.errorMsg = "canceled";
+                    response.canceled = true;
+                    mListener.onHttpFinish(response);
+                }
+                if (last) {
+                    mSignal.cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.nat.stream.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Keep-alive settings of the connections an adapter opens, and estimates of how often a
+ * request got a pooled connection. {@link OkHttpAdapter} sizes OkHttp's pool with the settings
+ * and counts the hits and misses OkHttp reports, which are exact; OkHttp does not report
+ * evictions. HttpURLConnection has no pool of its own to size nor reports reuse:
+ * {@link DefaultHttpAdapter} ignores the settings except for keep-alive being off, which it
+ * applies by asking servers to close each connection, and derives the counters from a model of
+ * the process-wide pool fed with each response's keep-alive. The model uses that pool's own
+ * limits, the http.maxConnections and http.keepAliveDuration system properties or their
+ * defaults, and may still differ from the sockets actually reused. {@link #applyToPlatform()}
+ * sets those limits for the whole process.
+ */
+
+public class ConnectionPool {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    private final int maxIdleConnections;
+    private final long keepAliveDurationMs;
+
+    /**
+     * Limits of the pool the counters model, the settings unless {@link #modelPlatformPool()}
+     */
+    private int mModelMaxIdle;
+    private long mModelKeepAliveMs;
+    private final Map<String, Deque<Long>> mIdle = new HashMap<>();
+    private int mIdleCount;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION_MS);
+    }
+
+    /**
+     * @param maxIdleConnections idle connections kept in total, over all hosts; 0 turns
+     *                           keep-alive off. Only {@link OkHttpAdapter} applies other values
+     * @param keepAliveDurationMs how long an idle connection is kept, only applied by
+     *                            {@link OkHttpAdapter}
+     */
+    public ConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+        if (maxIdleConnections < 0 || keepAliveDurationMs <= 0) {
+            throw new IllegalArgumentException("invalid connection pool settings");
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveDurationMs = keepAliveDurationMs;
+        mModelMaxIdle = maxIdleConnections;
+        mModelKeepAliveMs = keepAliveDurationMs;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public long getKeepAliveDurationMs() {
+        return keepAliveDurationMs;
+    }
+
+    /**
+     * Sets the http.keepAlive, http.maxConnections and http.keepAliveDuration system
+     * properties, which apply to every HttpURLConnection of the process, not only the library's.
+     * Never called by the library; an app that owns all its connections may call it once at
+     * start up. Platform versions read the properties when they create their pool, later
+     * changes are ignored without notice.
+     */
+    public void applyToPlatform() {
+        System.setProperty("http.keepAlive", String.valueOf(maxIdleConnections > 0));
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(maxIdleConnections, 1)));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDurationMs));
+    }
+
+    /**
+     * Requests that went over a pooled connection; exact with {@link OkHttpAdapter}, estimated
+     * with {@link DefaultHttpAdapter}.
+     */
+    public synchronized long getEstimatedHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Requests that had to open a new connection; exact with {@link OkHttpAdapter}, estimated
+     * with {@link DefaultHttpAdapter}.
+     */
+    public synchronized long getEstimatedMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Idle connections closed for exceeding the idle limit or the keep-alive duration, estimated
+     * with {@link DefaultHttpAdapter}; always 0 with {@link OkHttpAdapter}.
+     */
+    public synchronized long getEstimatedEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Share of requests that reused a connection, 0 before the first request.
+     */
+    public synchronized double getEstimatedReuseRate() {
+        long total = mHitCount + mMissCount;
+        return total == 0 ? 0 : (double) mHitCount / total;
+    }
+
+    /**
+     * Idle connections of the {@link DefaultHttpAdapter} model; always 0 with
+     * {@link OkHttpAdapter}, whose client's pool has the real number.
+     */
+    public synchronized int getEstimatedIdleConnectionCount() {
+        evictExpired(System.nanoTime());
+        return mIdleCount;
+    }
+
+    public synchronized void resetStats() {
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+    }
+
+    synchronized void recordHit() {
+        mHitCount++;
+    }
+
+    synchronized void recordMiss() {
+        mMissCount++;
+    }
+
+    /**
+     * Has the counters model HttpURLConnection's process-wide pool, which the settings do not
+     * size: its limits are read from the system properties {@link #applyToPlatform()} sets,
+     * falling back to the platform defaults. Keep-alive being off still applies.
+     */
+    synchronized void modelPlatformPool() {
+        boolean keepAlive = !"false".equals(System.getProperty("http.keepAlive"));
+        mModelMaxIdle = keepAlive && maxIdleConnections > 0
+                ? (int) longProperty("http.maxConnections", DEFAULT_MAX_IDLE_CONNECTIONS) : 0;
+        mModelKeepAliveMs = longProperty("http.keepAliveDuration", DEFAULT_KEEP_ALIVE_DURATION_MS);
+    }
+
+    private static long longProperty(String key, long defaultValue) {
+        try {
+            long value = Long.parseLong(System.getProperty(key, ""));
+            return value > 0 ? value : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Whether connections should be closed after each request instead of kept alive.
+     */
+    public boolean isKeepAliveDisabled() {
+        return maxIdleConnections == 0;
+    }
+
+    /**
+     * A request to {@code host} takes a connection, the most recently released idle one of the
+     * model if any.
+     */
+    synchronized void acquire(String host) {
+        evictExpired(System.nanoTime());
+        Deque<Long> idle = mIdle.get(host);
+        if (idle != null && !idle.isEmpty()) {
+            idle.pollLast();
+            mIdleCount--;
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * A request to {@code host} is done with its connection.
+     *
+     * @param reusable the body was read to the end and closed and the server keeps the
+     *                 connection alive, so it went back to the pool
+     */
+    synchronized void release(String host, boolean reusable) {
+        if (!reusable) return;
+        if (mModelMaxIdle == 0) {
+            mEvictionCount++;
+            return;
+        }
+        Deque<Long> idle = mIdle.get(host);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdle.put(host, idle);
+        }
+        idle.addLast(System.nanoTime());
+        mIdleCount++;
+        while (mIdleCount > mModelMaxIdle) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Closes the connection idle the longest, whatever its host, as the limit is a total one.
+     */
+    private void evictOldest() {
+        Deque<Long> oldest = null;
+        for (Deque<Long> idle : mIdle.values()) {
+            if (!idle.isEmpty() && (oldest == null || idle.peekFirst() < oldest.peekFirst())) {
+                oldest = idle;
+            }
+        }
+        oldest.pollFirst();
+        mIdleCount--;
+        mEvictionCount++;
+    }
+
+    private void evictExpired(long now) {
+        long keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(mModelKeepAliveMs);
+        Iterator<Deque<Long>> hosts = mIdle.values().iterator();
+        while (hosts.hasNext()) {
+            Deque<Long> idle = hosts.next();
+            while (!idle.isEmpty() && now - idle.peekFirst() > keepAliveNanos) {
+                idle.pollFirst();
+                mIdleCount--;
+                mEvictionCount++;
+            }
+            if (idle.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.nat.stream.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Decodes a response body sent with a {@code Content-Encoding}. Decoders registered on
+ * {@link DefaultHttpAdapter} are advertised in {@code Accept-Encoding} and applied while the
+ * body is read, so it is never held compressed in memory.
+ */
+
+public abstract class ContentDecoder {
+    private static final int BUFFER_SIZE = 8192;
+
+    public static final ContentDecoder GZIP = new ContentDecoder() {
+        @Override
+        public String encoding() {
+            return "gzip";
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * {@code deflate} as specified (zlib wrapped) and as sent by some servers (raw deflate).
+     */
+    public static final ContentDecoder DEFLATE = new ContentDecoder() {
+        @Override
+        public String encoding() {
+            return "deflate";
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+            buffered.mark(2);
+            int cmf = buffered.read();
+            int flg = buffered.read();
+            buffered.reset();
+            boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(buffered, new Inflater(!zlib), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    // a caller supplied Inflater is not released by InflaterInputStream
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+    };
+
+    /**
+     * Content coding token, e.g. {@code gzip}, compared ignoring case.
+     */
+    public abstract String encoding();
+
+    /**
+     * Wraps the encoded body stream {@code in} into one returning the decoded bytes.
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+}
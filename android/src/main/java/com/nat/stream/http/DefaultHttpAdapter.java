@@ -3,19 +3,28 @@ package com.nat.stream.http;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by xuqinchao on 17/1/20.
@@ -24,13 +33,102 @@ import java.util.concurrent.Executors;
 
 public class DefaultHttpAdapter implements HttpAdapter {
     public static final String TAG = "DefaultHttpAdapter";
-    private ExecutorService mExecutorService;
+    private static final int STREAM_CHUNK_SIZE = 8192;
+    private static final int FILE_BUFFER_SIZE = 16 * 1024;
+    private final HttpDispatcher mDispatcher;
+    private final BufferPool mBufferPool = BufferPool.SHARED;
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private volatile ConnectionPool mConnectionPool = new ConnectionPool();
+    /**
+     * Decoders by lower case content coding, replaced as a whole on change
+     */
+    private volatile Map<String, ContentDecoder> mDecoders;
+
+    public DefaultHttpAdapter() {
+        this(new HttpDispatcher());
+    }
+
+    /**
+     * @param dispatcher shared dispatcher the requests of this adapter are queued on
+     */
+    public DefaultHttpAdapter(HttpDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher == null");
+        }
+        mDispatcher = dispatcher;
+        mConnectionPool.modelPlatformPool();
+        Map<String, ContentDecoder> decoders = new LinkedHashMap<>();
+        decoders.put(ContentDecoder.GZIP.encoding(), ContentDecoder.GZIP);
+        decoders.put(ContentDecoder.DEFLATE.encoding(), ContentDecoder.DEFLATE);
+        mDecoders = decoders;
+    }
+
+    public HttpDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    /**
+     * Keep-alive settings and the counters to update, see {@link #configureConnectionPool}.
+     */
+    public synchronized void setConnectionPool(ConnectionPool connectionPool) {
+        if (connectionPool == null) {
+            throw new IllegalArgumentException("connectionPool == null");
+        }
+        configureConnectionPool(connectionPool);
+        mConnectionPool = connectionPool;
+    }
+
+    /**
+     * Hands the keep-alive settings to the connection library. HttpURLConnection's pool is
+     * shared by the whole process, so its limits stay as they are and the counters model them
+     * rather than the settings; keep-alive being off is applied per request, see
+     * {@link #applyKeepAlive(HttpURLConnection)}.
+     */
+    protected void configureConnectionPool(ConnectionPool connectionPool) {
+        connectionPool.modelPlatformPool();
+    }
+
+    /**
+     * Asks the server to close the connection after the response if the pool keeps none.
+     */
+    void applyKeepAlive(HttpURLConnection connection) {
+        if (mConnectionPool.isKeepAliveDisabled() && connection.getRequestProperty("Connection") == null) {
+            connection.setRequestProperty("Connection", "close");
+        }
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
 
-    private void execute(Runnable runnable){
-        if(mExecutorService==null){
-            mExecutorService = Executors.newFixedThreadPool(3);
+    /**
+     * @param retryPolicy {@link RetryPolicy#NONE} to deliver every failure right away
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy == null");
         }
-        mExecutorService.execute(runnable);
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Accept responses encoded with {@code decoder}'s content coding and decode them while
+     * reading; gzip and deflate are registered by default.
+     */
+    public synchronized void addContentDecoder(ContentDecoder decoder) {
+        Map<String, ContentDecoder> decoders = new LinkedHashMap<>(mDecoders);
+        decoders.put(decoder.encoding().toLowerCase(Locale.US), decoder);
+        mDecoders = decoders;
+    }
+
+    public synchronized void removeContentDecoder(String encoding) {
+        Map<String, ContentDecoder> decoders = new LinkedHashMap<>(mDecoders);
+        decoders.remove(encoding.toLowerCase(Locale.US));
+        mDecoders = decoders;
     }
 
     @Override
@@ -38,44 +136,349 @@ public class DefaultHttpAdapter implements HttpAdapter {
         if (listener != null) {
             listener.onHttpStart();
         }
-        execute(new Runnable() {
-            @Override
-            public void run() {
-                Response response = new Response();
-                try {
-                    HttpURLConnection connection = openConnection(request, listener);
-                    Map<String,List<String>> headers = connection.getHeaderFields();
-                    int responseCode = connection.getResponseCode();
-                    String responseMsg = "";
-//                    String responseMsg = connection.getResponseMessage();
-                    if(listener != null){
-                        listener.onHeadersReceived(responseCode,headers);
-                    }
+        QueuedCall call = new QueuedCall(request, listener);
+        try {
+            mDispatcher.enqueue(HttpDispatcher.hostOf(request.url), request.priority, call);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, e.getMessage() + "");
+            Response response = new Response();
+            response.statusCode = -1;
+            response.errorCode = -1;
+            response.errorMsg = e.getMessage();
+            call.deliver(response);
+            return;
+        }
+        if (request.cancelSignal != null) {
+            request.cancelSignal.addOnCancelListener(call);
+        }
+        if (request.deadlineNanos != 0) {
+            call.startDeadline();
+        }
+    }
 
-                    response.statusCode = responseCode;
-                    response.statusMessage = responseMsg;
-                    if (responseCode >= 200 && responseCode<=299) {
-                        response.originalData = readInputStreamAsBytes(connection.getInputStream(), listener);
-                        response.errorCode = 0;
-                    } else {
-                        response.errorMsg = readInputStream(connection.getErrorStream(), listener);
-                        response.errorCode = 1;
+    private void execute(QueuedCall call) {
+        Request request = call.mRequest;
+        HttpAdapter.OnHttpListener listener = call.mListener;
+        RequestMetrics metrics = call.mMetrics;
+        Response response = new Response();
+        metrics.queueWaitMs += RequestMetrics.elapsedMs(call.mQueuedAt, System.nanoTime());
+        if (isCanceled(request)) {
+            call.finished();
+            finishCanceled(call);
+            return;
+        }
+        call.mAttempts++;
+        metrics.connectMs = 0;
+        metrics.firstByteMs = 0;
+        metrics.downloadMs = 0;
+        metrics.bytesSent = 0;
+        metrics.bytesReceived = 0;
+        RetryPolicy retryPolicy = mRetryPolicy;
+        boolean retryable = retryPolicy.canRetry(request, call.mAttempts);
+        boolean headersReceived = false;
+        boolean retrying = false;
+        DownloadState download = null;
+        HttpURLConnection connection = null;
+        boolean reusable = false;
+        ConnectionCanceler canceler = new ConnectionCanceler();
+        if (request.cancelSignal != null) {
+            request.cancelSignal.addOnCancelListener(canceler);
+        }
+        try {
+            call.attach(canceler);
+            Map<String, String> extraHeaders = null;
+            long resumeOffset = 0;
+            if (request.saveTo != null && request.resumable) {
+                download = DownloadState.load(new File(request.saveTo), request.url);
+                resumeOffset = download.resumeOffset();
+                if (resumeOffset > 0) {
+                    extraHeaders = new HashMap<>();
+                    extraHeaders.put("Range", "bytes=" + resumeOffset + "-");
+                    extraHeaders.put("If-Range", download.ifRange());
+                }
+            }
+            connection = openConnection(request, extraHeaders, canceler, metrics, listener);
+            connectionAcquired(request);
+            long sentAt = System.nanoTime();
+            Map<String,List<String>> headers = connection.getHeaderFields();
+            int responseCode = connection.getResponseCode();
+            long headersAt = System.nanoTime();
+            metrics.firstByteMs = RequestMetrics.elapsedMs(sentAt, headersAt);
+            if (retryable && retryPolicy.isRetryable(responseCode)) {
+                long delayMs = retryPolicy.retryDelayMs(call.mAttempts, connection.getHeaderField("Retry-After"));
+                if (delayMs >= 0 && request.remainingMs() > delayMs) {
+                    discard(connection.getErrorStream());
+                    reusable = isKeepAlive(connection);
+                    if (download != null) {
+                        download.save();
+                    }
+                    if (!retry(call, delayMs)) {
+                        throw new IOException("can not retry, dispatcher is shut down");
                     }
-                    if (listener != null) {
-                        listener.onHttpFinish(response);
+                    retrying = true;
+                    return;
+                }
+            }
+            String responseMsg = "";
+//            String responseMsg = connection.getResponseMessage();
+            headersReceived = true;
+            ContentDecoder decoder = decoderFor(connection.getContentEncoding());
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && request.saveTo != null
+                    && (decoder != null || DownloadState.rangeStart(connection) != resumeOffset)) {
+                // a range that can not be appended to the partial file, and must never be
+                // written as the whole body: start over without Range
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (download != null) {
+                    download.discard();
+                    download = null;
+                }
+                abandon(request, connection);
+                connection = null;
+                if (resumeOffset > 0 && retry(call, 0)) {
+                    retrying = true;
+                    return;
+                }
+                throw new IOException("unusable partial response, Content-Range: " + contentRange);
+            }
+            if(listener != null){
+                listener.onHeadersReceived(responseCode,headers);
+            }
+
+            response.statusCode = responseCode;
+            response.statusMessage = responseMsg;
+            if (decoder != null && download != null && responseCode >= 200 && responseCode <= 299) {
+                // offsets of a decoded body do not map onto byte ranges of the encoded one
+                download.discard();
+                download = null;
+                resumeOffset = 0;
+            }
+            if (responseCode >= 200 && responseCode<=299) {
+                if (request.saveTo != null) {
+                    if (download != null) {
+                        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                            // the server ignored the range and sent the whole body
+                            resumeOffset = 0;
+                        }
+                        download.update(connection, resumeOffset);
+                        download.save();
                     }
-                } catch (IOException|IllegalArgumentException e) {
-                    Log.e(TAG, e.getMessage() + "");
-                    e.printStackTrace();
-                    response.statusCode = -1;
-                    response.errorCode= -1;
-                    response.errorMsg=e.getMessage();
-                    if(listener!=null){
-                        listener.onHttpFinish(response);
+                    response.filePath = readInputStreamToFile(new CountingInputStream(connection.getInputStream(), metrics),
+                            decoder, new File(request.saveTo), resumeOffset, contentLength(connection),
+                            download != null, listener);
+                    if (download != null) {
+                        download.clear();
                     }
+                } else if (request.stream && listener instanceof HttpAdapter.OnHttpChunkListener) {
+                    readInputStreamAsChunks(new CountingInputStream(connection.getInputStream(), metrics), decoder,
+                            (HttpAdapter.OnHttpChunkListener) listener);
+                } else {
+                    response.originalData = readInputStreamAsBytes(new CountingInputStream(connection.getInputStream(), metrics),
+                            decoder, decoder == null ? contentLength(connection) : -1, listener);
+                    response.decoded = decoder != null;
                 }
+                response.errorCode = 0;
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // answer to a conditional request, there is no body to read
+                discard(connection.getInputStream());
+                response.errorCode = 0;
+            } else if (responseCode == 416 && download != null && download.isComplete()) {
+                // everything was already written by an earlier attempt
+                discard(connection.getErrorStream());
+                response.filePath = moveToTarget(download.partial, download.target);
+                download.clear();
+                response.statusCode = HttpURLConnection.HTTP_OK;
+                response.errorCode = 0;
+            } else {
+                if (download != null && responseCode == 416) {
+                    download.discard();
+                }
+                InputStream errorStream = connection.getErrorStream();
+                response.errorMsg = errorStream == null ? null
+                        : readInputStream(new CountingInputStream(errorStream, metrics), decoder,
+                                ResponseBody.charset(connection.getContentType()), listener);
+                response.errorCode = 1;
+            }
+            // every body was read to its end and closed by now
+            metrics.downloadMs = RequestMetrics.elapsedMs(headersAt, System.nanoTime());
+            connectionReleased(request, isKeepAlive(connection));
+            connection = null;
+            call.deliver(response);
+        } catch (IOException e) {
+            abandon(request, connection);
+            connection = null;
+            if (retryable && !headersReceived && !isCanceled(request) && !call.isTimedOut()
+                    && retryPolicy.isRetryable(e)) {
+                Log.w(TAG, "attempt " + call.mAttempts + " failed, retrying: " + e.getMessage());
+                if (download != null) {
+                    download.save();
+                }
+                if (retry(call, retryPolicy.backoffMs(call.mAttempts))) {
+                    retrying = true;
+                    return;
+                }
+            }
+            fail(call, download, response, e, call.isTimedOut());
+        } catch (IllegalArgumentException e) {
+            abandon(request, connection);
+            connection = null;
+            fail(call, download, response, e, false);
+        } catch (RuntimeException e) {
+            abandon(request, connection);
+            connection = null;
+            // how some HttpURLConnection implementations react to a disconnect from another thread
+            if (!isCanceled(request) && !call.isTimedOut()) {
+                throw e;
+            }
+            fail(call, download, response, e, call.isTimedOut());
+        } finally {
+            if (connection != null) {
+                // left early to retry
+                connectionReleased(request, reusable);
+            }
+            call.detach();
+            if (request.cancelSignal != null) {
+                request.cancelSignal.removeOnCancelListener(canceler);
+            }
+            if (!retrying) {
+                call.finished();
             }
-        });
+        }
+    }
+
+    /**
+     * @param timedOut the deadline passed, or else the failure is checked for a socket timeout
+     */
+    private static void fail(QueuedCall call, DownloadState download, Response response, Exception e,
+                             boolean timedOut) {
+        Log.e(TAG, e.getMessage() + "");
+        e.printStackTrace();
+        if (download != null) {
+            download.save();
+        }
+        response.statusCode = -1;
+        response.errorCode= -1;
+        response.errorMsg=e.getMessage();
+        response.canceled = isCanceled(call.mRequest);
+        response.timedOut = timedOut || e instanceof SocketTimeoutException;
+        call.deliver(response);
+    }
+
+    /**
+     * Queues {@code call} again after {@code delayMs}.
+     *
+     * @return false if the dispatcher no longer accepts calls
+     */
+    private boolean retry(QueuedCall call, long delayMs) {
+        Request request = call.mRequest;
+        if (request.remainingMs() <= delayMs) {
+            return false;
+        }
+        try {
+            mDispatcher.enqueueDelayed(HttpDispatcher.hostOf(request.url), request.priority, call, delayMs);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        // the backoff is not time spent in the queue
+        call.mQueuedAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        if (request.cancelSignal != null) {
+            request.cancelSignal.addOnCancelListener(call);
+        }
+        return true;
+    }
+
+    /**
+     * Reads off and closes a body that is not delivered, so the connection can be reused.
+     */
+    private void discard(InputStream in) throws IOException {
+        if (in == null) return;
+        byte[] data = mBufferPool.acquire(FILE_BUFFER_SIZE);
+        try {
+            while (in.read(data, 0, data.length) != -1) {
+                // drain
+            }
+        } finally {
+            in.close();
+            mBufferPool.release(data);
+        }
+    }
+
+    /**
+     * Closes the connection of a failed attempt instead of returning it to the pool, its
+     * stream may be anywhere in the middle of a body.
+     */
+    private void abandon(Request request, HttpURLConnection connection) {
+        if (connection == null) return;
+        connection.disconnect();
+        connectionReleased(request, false);
+    }
+
+    static boolean isKeepAlive(HttpURLConnection connection) {
+        return !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
+    }
+
+    /**
+     * A connection to the request's host was taken for an attempt; counted against the
+     * {@link ConnectionPool} unless the connection library reports reuse itself.
+     */
+    protected void connectionAcquired(Request request) {
+        mConnectionPool.acquire(HttpDispatcher.hostOf(request.url));
+    }
+
+    /**
+     * The attempt is done with its connection.
+     *
+     * @param reusable it went back to the pool
+     */
+    protected void connectionReleased(Request request, boolean reusable) {
+        mConnectionPool.release(HttpDispatcher.hostOf(request.url), reusable);
+    }
+
+    private static boolean isCanceled(Request request) {
+        return request.cancelSignal != null && request.cancelSignal.isCanceled();
+    }
+
+    private static void finishCanceled(QueuedCall call) {
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = "canceled";
+        response.canceled = true;
+        call.deliver(response);
+    }
+
+    private static void finishDropped(QueuedCall call) {
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = "dispatcher shut down";
+        response.canceled = true;
+        call.deliver(response);
+    }
+
+    private static void finishTimedOut(QueuedCall call) {
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = "deadline exceeded";
+        response.timedOut = true;
+        call.deliver(response);
+    }
+
+    /**
+     * Connect and read timeouts of {@code request}, each cut down to the time left until its
+     * deadline.
+     *
+     * @throws SocketTimeoutException if the deadline already passed
+     */
+    static void setTimeouts(HttpURLConnection connection, Request request) throws SocketTimeoutException {
+        long remaining = request.remainingMs();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("deadline exceeded");
+        }
+        int connectTimeout = request.connectTimeoutMs > 0 ? request.connectTimeoutMs : request.timeoutMs;
+        int readTimeout = request.readTimeoutMs > 0 ? request.readTimeoutMs : request.timeoutMs;
+        connection.setConnectTimeout((int) Math.min(connectTimeout, remaining));
+        connection.setReadTimeout((int) Math.min(readTimeout, remaining));
     }
 
 
@@ -83,15 +486,20 @@ public class DefaultHttpAdapter implements HttpAdapter {
      * Opens an {@link HttpURLConnection} with parameters.
      *
      * @param request
+     * @param extraHeaders headers added by the adapter itself, may be null
+     * @param canceler disconnects the connection on cancel or once the deadline passes
+     * @param metrics gets the connect time and the request body bytes
      * @param listener
-     * @return an open connection
+     * @return a connection the request was sent on
      * @throws IOException
      */
-    private HttpURLConnection openConnection(Request request, HttpAdapter.OnHttpListener listener) throws IOException {
+    private HttpURLConnection openConnection(Request request, Map<String, String> extraHeaders,
+                                             ConnectionCanceler canceler, RequestMetrics metrics,
+                                             HttpAdapter.OnHttpListener listener) throws IOException {
         URL url = new URL(request.url);
         HttpURLConnection connection = createConnection(url);
-        connection.setConnectTimeout(request.timeoutMs);
-        connection.setReadTimeout(request.timeoutMs);
+        canceler.setConnection(connection);
+        setTimeouts(connection, request);
         connection.setUseCaches(false);
         connection.setDoInput(true);
 
@@ -101,21 +509,26 @@ public class DefaultHttpAdapter implements HttpAdapter {
                 connection.addRequestProperty(key, request.paramMap.get(key));
             }
         }
+        if (extraHeaders != null) {
+            for (Map.Entry<String, String> entry : extraHeaders.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        if (connection.getRequestProperty("Accept-Encoding") == null) {
+            // set explicitly so the platform does not decode behind our back; files are
+            // fetched as is since ranges are counted in encoded bytes
+            connection.setRequestProperty("Accept-Encoding",
+                    request.saveTo != null ? "identity" : acceptEncoding());
+        }
+        applyKeepAlive(connection);
 
         if ("POST".equals(request.method) || "PUT".equals(request.method) || "PATCH".equals(request.method)) {
             connection.setRequestMethod(request.method);
-            if (request.body != null) {
-                if (listener != null) {
-                    listener.onHttpUploadProgress(0);
-                }
-                connection.setDoOutput(true);
-                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
-                //TODO big stream will cause OOM; Progress callback is meaningless
-                out.write(request.body.getBytes());
-                out.close();
-                if (listener != null) {
-                    listener.onHttpUploadProgress(100);
-                }
+            RequestBody body = request.requestBody != null ? request.requestBody
+                    : request.body != null ? RequestBody.create(request.body) : null;
+            if (body != null) {
+                writeRequestBody(connection, body, request.gzip, metrics, listener);
+                return connection;
             }
         } else if (!TextUtils.isEmpty(request.method)) {
             connection.setRequestMethod(request.method);
@@ -123,48 +536,491 @@ public class DefaultHttpAdapter implements HttpAdapter {
             connection.setRequestMethod("GET");
         }
 
+        connect(connection, metrics);
         return connection;
     }
 
-    private byte[] readInputStreamAsBytes(InputStream inputStream, HttpAdapter.OnHttpListener listener) throws IOException{
-        if(inputStream == null){
-            return null;
+    /**
+     * Connects explicitly rather than on first use, to tell the connect time apart.
+     */
+    private static void connect(HttpURLConnection connection, RequestMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        connection.connect();
+        metrics.connectMs = RequestMetrics.elapsedMs(start, System.nanoTime());
+    }
+
+    /**
+     * Streams {@code body} into the connection, with a fixed length when it is known and chunked
+     * otherwise, so the platform never buffers the whole body. Upload progress counts body bytes,
+     * before compression.
+     *
+     * @param gzip compress on the fly, unless the caller set its own Content-Encoding
+     */
+    private void writeRequestBody(HttpURLConnection connection, RequestBody body, boolean gzip,
+                                  RequestMetrics metrics,
+                                  final HttpAdapter.OnHttpListener listener) throws IOException {
+        gzip = gzip && connection.getRequestProperty("Content-Encoding") == null;
+        long length = body.contentLength();
+        if (gzip) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setChunkedStreamingMode(0);
+        } else if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else {
+            connection.setChunkedStreamingMode(0);
         }
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        if (body.contentType() != null && connection.getRequestProperty("Content-Type") == null) {
+            connection.setRequestProperty("Content-Type", body.contentType());
+        }
+        connection.setDoOutput(true);
+        if (listener != null) {
+            listener.onHttpUploadProgress(0);
+        }
+        connect(connection, metrics);
+        CountingOutputStream wire = new CountingOutputStream(connection.getOutputStream());
+        OutputStream sink = wire;
+        if (gzip) {
+            sink = new GZIPOutputStream(sink, RequestBody.BUFFER_SIZE);
+        }
+        OutputStream out = new FilterOutputStream(sink) {
+            private long mWritten;
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                out.write(buffer, offset, count);
+                mWritten += count;
+                if (listener != null) {
+                    // the callback takes an int, a body past 2 GB reports its limit from there on
+                    listener.onHttpUploadProgress((int) Math.min(mWritten, Integer.MAX_VALUE));
+                }
+            }
+        };
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+            metrics.bytesSent = wire.count;
+        }
+    }
+
+    /**
+     * @param length decoded body length if known, -1 otherwise
+     */
+    private byte[] readInputStreamAsBytes(CountingInputStream wire, ContentDecoder decoder, long length,
+                                          HttpAdapter.OnHttpListener listener) throws IOException{
+        ResponseBody body = readBody(wire, decoder, length, listener);
+        try {
+            return body.bytes();
+        } finally {
+            body.release();
+        }
+    }
 
+    private ResponseBody readBody(CountingInputStream wire, ContentDecoder decoder, long length,
+                                  HttpAdapter.OnHttpListener listener) throws IOException {
+        ResponseBody body = new ResponseBody(mBufferPool, length);
+        boolean complete = false;
+        InputStream inputStream = wire;
+        try {
+            inputStream = decode(wire, decoder);
+            while (body.readFrom(inputStream) != -1) {
+                reportProgress(listener, wire.count, body.length());
+            }
+            complete = true;
+        } finally {
+            inputStream.close();
+            if (!complete) {
+                body.release();
+            }
+        }
+        return body;
+    }
+
+    private void readInputStreamAsChunks(CountingInputStream wire, ContentDecoder decoder,
+                                         HttpAdapter.OnHttpChunkListener listener) throws IOException {
+        InputStream inputStream = wire;
         int nRead;
-        int readCount = 0;
-        byte[] data = new byte[2048];
+        long readCount = 0;
+        byte[] data = mBufferPool.acquire(STREAM_CHUNK_SIZE);
+
+        try {
+            inputStream = decode(wire, decoder);
+            while ((nRead = inputStream.read(data, 0, STREAM_CHUNK_SIZE)) != -1) {
+                readCount += nRead;
+                listener.onHttpResponseChunk(data, 0, nRead);
+                reportProgress(listener, wire.count, readCount);
+            }
+        } finally {
+            inputStream.close();
+            mBufferPool.release(data);
+        }
+    }
 
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-            readCount += nRead;
-            if (listener != null) {
-                listener.onHttpResponseProgress(readCount);
+    /**
+     * Writes the body into a temporary file next to {@code target} and renames it once complete,
+     * so a failed transfer never leaves a truncated file under the target name.
+     *
+     * @param offset bytes of the body already in the temporary file, appended to if non zero
+     * @param length wire bytes expected from {@code wire}, -1 if unknown
+     * @param keepPartial keep the temporary file on failure so the transfer can be resumed
+     * @return absolute path of {@code target}
+     */
+    private String readInputStreamToFile(CountingInputStream wire, ContentDecoder decoder, File target,
+                                         long offset, long length, boolean keepPartial,
+                                         HttpAdapter.OnHttpListener listener) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            wire.close();
+            throw new IOException("can not create directory " + parent);
+        }
+        File tmp = DownloadState.partialFile(target);
+        FileOutputStream out = new FileOutputStream(tmp, offset > 0);
+        InputStream inputStream = wire;
+        byte[] data = mBufferPool.acquire(FILE_BUFFER_SIZE);
+        boolean complete = false;
+        try {
+            inputStream = decode(wire, decoder);
+            int nRead;
+            long readCount = offset;
+            while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+                out.write(data, 0, nRead);
+                readCount += nRead;
+                reportProgress(listener, offset + wire.count, readCount);
+            }
+            if (length >= 0 && wire.count != length) {
+                throw new IOException("unexpected end of stream, " + wire.count + " of " + length + " bytes");
             }
+            out.getFD().sync();
+            complete = true;
+        } finally {
+            inputStream.close();
+            out.close();
+            mBufferPool.release(data);
+            if (!complete && !keepPartial) {
+                tmp.delete();
+            }
+        }
+        return moveToTarget(tmp, target);
+    }
+
+    private static long contentLength(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String moveToTarget(File tmp, File target) throws IOException {
+        if (target.exists() && !target.delete() || !tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("can not move download to " + target);
+        }
+        return target.getAbsolutePath();
+    }
+
+    private String readInputStream(CountingInputStream wire, ContentDecoder decoder, Charset charset,
+                                   HttpAdapter.OnHttpListener listener) throws IOException {
+        ResponseBody body = readBody(wire, decoder, -1, listener);
+        try {
+            return body.string(charset);
+        } finally {
+            body.release();
         }
+    }
+
+    private String acceptEncoding() {
+        Map<String, ContentDecoder> decoders = mDecoders;
+        if (decoders.isEmpty()) {
+            return "identity";
+        }
+        StringBuilder value = new StringBuilder();
+        for (String encoding : decoders.keySet()) {
+            if (value.length() > 0) value.append(", ");
+            value.append(encoding);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Decoder of a response's content coding, null to hand the body over as received, which is
+     * also the case for a coding the caller asked for itself without registering a decoder.
+     */
+    private ContentDecoder decoderFor(String contentEncoding) {
+        if (contentEncoding == null) return null;
+        return mDecoders.get(contentEncoding.trim().toLowerCase(Locale.US));
+    }
 
-        buffer.flush();
+    /**
+     * Decoded view of {@code wire}; an empty body is returned as is since it has no encoding
+     * header to read.
+     */
+    private static InputStream decode(CountingInputStream wire, ContentDecoder decoder) throws IOException {
+        if (decoder == null) return wire;
+        PushbackInputStream in = new PushbackInputStream(wire, 1);
+        try {
+            int first = in.read();
+            if (first == -1) return in;
+            in.unread(first);
+            return decoder.decode(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
 
-        return buffer.toByteArray();
+    private static void reportProgress(HttpAdapter.OnHttpListener listener, long wireBytes, long decodedBytes) {
+        if (listener == null) return;
+        listener.onHttpResponseProgress((int) Math.min(wireBytes, Integer.MAX_VALUE));
+        if (listener instanceof HttpAdapter.OnHttpTransferListener) {
+            ((HttpAdapter.OnHttpTransferListener) listener).onHttpTransferProgress(wireBytes, decodedBytes);
+        }
     }
 
-    private String readInputStream(InputStream inputStream, HttpAdapter.OnHttpListener listener) throws IOException {
-        if(inputStream == null){
-            return null;
+    /**
+     * Queued request, dropped from the dispatcher if canceled before it starts or while it
+     * waits for a retry, and failed if the dispatcher shuts down meanwhile.
+     */
+    private final class QueuedCall implements HttpDispatcher.DroppableTask, CancelSignal.OnCancelListener {
+        private final Request mRequest;
+        private final HttpAdapter.OnHttpListener mListener;
+        private final RequestMetrics mMetrics;
+        /**
+         * Attempts made so far, only touched by the worker running the call
+         */
+        private int mAttempts;
+        /**
+         * When the call entered the ready queue, or will once its retry delay elapsed
+         */
+        private volatile long mQueuedAt;
+        private ConnectionCanceler mCanceler;
+        private boolean mTimedOut;
+        private boolean mFinished;
+        private ScheduledFuture<?> mDeadlineTimer;
+
+        QueuedCall(Request request, HttpAdapter.OnHttpListener listener) {
+            mRequest = request;
+            mListener = listener;
+            mMetrics = new RequestMetrics(request);
+            mQueuedAt = mMetrics.startNanos;
+        }
+
+        @Override
+        public void run() {
+            if (mRequest.cancelSignal != null) {
+                mRequest.cancelSignal.removeOnCancelListener(this);
+            }
+            execute(this);
+        }
+
+        @Override
+        public void onCancel() {
+            if (mDispatcher.cancel(this)) {
+                finished();
+                finishCanceled(this);
+            }
         }
-        StringBuilder builder = new StringBuilder();
-        BufferedReader localBufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        char[] data = new char[2048];
-        int len;
-        while ((len = localBufferedReader.read(data)) != -1) {
-            builder.append(data, 0, len);
-            if (listener != null) {
-                listener.onHttpResponseProgress(builder.length());
+
+        @Override
+        public void onDropped() {
+            if (mRequest.cancelSignal != null) {
+                mRequest.cancelSignal.removeOnCancelListener(this);
             }
+            finished();
+            finishDropped(this);
+        }
+
+        /**
+         * Fails the call once its request's deadline passes, wherever it is by then: queued,
+         * waiting for a retry or connected. Does nothing if the call already finished, which
+         * a fast one may have by the time it was enqueued.
+         */
+        void startDeadline() {
+            ScheduledFuture<?> timer;
+            try {
+                timer = mDispatcher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                }, mRequest.remainingMs());
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+            boolean finished;
+            synchronized (this) {
+                finished = mFinished;
+                if (!finished) {
+                    mDeadlineTimer = timer;
+                }
+            }
+            if (finished) {
+                timer.cancel(false);
+            }
+        }
+
+        private void expire() {
+            ConnectionCanceler canceler;
+            synchronized (this) {
+                if (mFinished) return;
+                mTimedOut = true;
+                canceler = mCanceler;
+            }
+            if (mDispatcher.cancel(this)) {
+                finished();
+                finishTimedOut(this);
+            } else if (canceler != null) {
+                canceler.onCancel();
+            }
+        }
+
+        synchronized boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        /**
+         * @throws SocketTimeoutException if the deadline passed before this attempt started
+         */
+        synchronized void attach(ConnectionCanceler canceler) throws SocketTimeoutException {
+            if (mTimedOut) {
+                throw new SocketTimeoutException("deadline exceeded");
+            }
+            mCanceler = canceler;
+        }
+
+        synchronized void detach() {
+            mCanceler = null;
+        }
+
+        /**
+         * Stops the deadline timer, the call delivered its response.
+         */
+        void finished() {
+            ScheduledFuture<?> timer;
+            synchronized (this) {
+                mFinished = true;
+                timer = mDeadlineTimer;
+                mDeadlineTimer = null;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+
+        /**
+         * Hands the final response to the listener, along with the call's metrics.
+         */
+        void deliver(Response response) {
+            mMetrics.retries = Math.max(mAttempts - 1, 0);
+            mMetrics.finish(response);
+            response.metrics = mMetrics;
+            if (mListener != null) {
+                mListener.onHttpFinish(response);
+            }
+        }
+    }
+
+    /**
+     * Disconnects the running request's connection on cancel or deadline, which fails its
+     * blocked reads and writes right away.
+     */
+    private static final class ConnectionCanceler implements CancelSignal.OnCancelListener {
+        private HttpURLConnection mConnection;
+        private boolean mCanceled;
+
+        synchronized void setConnection(HttpURLConnection connection) throws IOException {
+            if (mCanceled) {
+                throw new IOException("canceled");
+            }
+            mConnection = connection;
+        }
+
+        @Override
+        public void onCancel() {
+            HttpURLConnection connection;
+            synchronized (this) {
+                mCanceled = true;
+                connection = mConnection;
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read off the connection, before any content decoding, and adds them to
+     * the metrics once closed.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final RequestMetrics mMetrics;
+        private boolean mClosed;
+        long count;
+
+        CountingInputStream(InputStream in, RequestMetrics metrics) {
+            super(in);
+            mMetrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mMetrics.bytesReceived += count;
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Counts the bytes written to the connection, after any compression.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
         }
-        localBufferedReader.close();
-        return builder.toString();
     }
 
     /**
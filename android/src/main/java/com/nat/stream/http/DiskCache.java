@@ -0,0 +1,395 @@
+package com.nat.stream.http;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Response cache persisted in a directory, surviving process restarts. Every entry has a
+ * {@code <hash>.0} file with status, headers and freshness and a {@code <hash>.1} file with the
+ * body. A {@code journal} of CLEAN / READ / REMOVE / VARY lines is replayed on open to rebuild
+ * the LRU order, and the least recently used entries are deleted once the bodies exceed the
+ * max size.
+ */
+
+public class DiskCache {
+    public static final String TAG = "DiskCache";
+    public static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+    private static final String JOURNAL = "journal";
+    private static final int META_VERSION = 1;
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private long mSize;
+    private int mRedundantOps;
+    private Writer mJournal;
+    /**
+     * entry hash to body size and hash of its base key, in access order
+     */
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * base key hash to the Vary header names of the last response stored for it
+     */
+    private final Map<String, List<String>> mVaryNames = new HashMap<>();
+
+    public DiskCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Entry matching the request with {@code baseKey} and headers, fresh or not; null on a miss
+     * or if the files can not be read.
+     */
+    public synchronized CacheEntry get(String baseKey, Map<String, String> requestHeaders) {
+        if (!open()) return null;
+        List<String> varyNames = mVaryNames.get(hash(baseKey));
+        if (varyNames == null) return null;
+        List<String> vary = CacheEntry.varyValues(requestHeaders, varyNames);
+        if (vary == null) return null;
+        String hash = hash(CacheEntry.key(baseKey, vary));
+        if (mRecords.get(hash) == null) return null;
+        try {
+            CacheEntry entry = readEntry(hash);
+            journal("READ " + hash);
+            mRedundantOps++;
+            return entry;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage() + "");
+            removeRecord(hash);
+            return null;
+        }
+    }
+
+    public synchronized void put(String baseKey, List<String> varyNames, CacheEntry entry) {
+        if (entry.vary == null || !open()) return;
+        long size = entry.body == null ? 0 : entry.body.length;
+        if (size > mMaxSize) return;
+        String baseHash = hash(baseKey);
+        String hash = hash(CacheEntry.key(baseKey, entry.vary));
+        try {
+            writeAtomically(new File(mDirectory, hash + ".1"), entry.body == null ? new byte[0] : entry.body);
+            writeAtomically(new File(mDirectory, hash + ".0"), encodeMeta(entry));
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage() + "");
+            removeRecord(hash);
+            return;
+        }
+        Record previous = mRecords.put(hash, new Record(size, baseHash));
+        if (previous != null) {
+            mSize -= previous.size;
+            mRedundantOps++;
+        }
+        mSize += size;
+        if (!varyNames.equals(mVaryNames.get(baseHash))) {
+            mVaryNames.put(baseHash, varyNames);
+            journal("VARY " + baseHash + " " + (varyNames.isEmpty() ? "-" : join(varyNames)));
+        }
+        journal("CLEAN " + hash + " " + size + " " + baseHash);
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    /**
+     * Drops every variant stored for {@code baseKey}.
+     */
+    public synchronized void remove(String baseKey) {
+        if (!open()) return;
+        String baseHash = hash(baseKey);
+        List<String> hashes = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+            if (entry.getValue().baseHash.equals(baseHash)) {
+                hashes.add(entry.getKey());
+            }
+        }
+        for (String hash : hashes) {
+            removeRecord(hash);
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized void close() {
+        closeQuietly(mJournal);
+        mJournal = null;
+    }
+
+    private boolean open() {
+        if (mJournal != null) return true;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "can not create " + mDirectory);
+            return false;
+        }
+        mRecords.clear();
+        mVaryNames.clear();
+        mSize = 0;
+        mRedundantOps = 0;
+        File journal = new File(mDirectory, JOURNAL);
+        if (journal.exists()) {
+            readJournal(journal);
+        }
+        try {
+            rewriteJournal();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage() + "");
+            return false;
+        }
+        trimToSize();
+        return true;
+    }
+
+    private void readJournal(File journal) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journal));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 4 && "CLEAN".equals(parts[0])) {
+                    Record previous = mRecords.put(parts[1], new Record(Long.parseLong(parts[2]), parts[3]));
+                    if (previous != null) mSize -= previous.size;
+                    mSize += Long.parseLong(parts[2]);
+                } else if (parts.length == 2 && "READ".equals(parts[0])) {
+                    mRecords.get(parts[1]);
+                } else if (parts.length == 2 && "REMOVE".equals(parts[0])) {
+                    Record previous = mRecords.remove(parts[1]);
+                    if (previous != null) mSize -= previous.size;
+                } else if (parts.length == 3 && "VARY".equals(parts[0])) {
+                    mVaryNames.put(parts[1], "-".equals(parts[2])
+                            ? Collections.<String>emptyList() : Arrays.asList(parts[2].split(",")));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // keep what was replayed before the damaged line
+            Log.e(TAG, "journal: " + e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+        Iterator<Map.Entry<String, Record>> it = mRecords.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Record> entry = it.next();
+            if (!new File(mDirectory, entry.getKey() + ".0").exists()
+                    || !new File(mDirectory, entry.getKey() + ".1").exists()) {
+                mSize -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    private void rewriteJournal() throws IOException {
+        closeQuietly(mJournal);
+        File tmp = new File(mDirectory, JOURNAL + ".tmp");
+        Writer writer = new BufferedWriter(new FileWriter(tmp));
+        try {
+            for (Map.Entry<String, List<String>> entry : mVaryNames.entrySet()) {
+                writer.write("VARY " + entry.getKey() + " "
+                        + (entry.getValue().isEmpty() ? "-" : join(entry.getValue())) + "\n");
+            }
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                writer.write("CLEAN " + entry.getKey() + " " + entry.getValue().size + " "
+                        + entry.getValue().baseHash + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File journal = new File(mDirectory, JOURNAL);
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("can not replace " + journal);
+        }
+        mJournal = new BufferedWriter(new FileWriter(journal, true));
+        mRedundantOps = 0;
+    }
+
+    private void journal(String line) {
+        if (mJournal == null) return;
+        try {
+            mJournal.write(line);
+            mJournal.write('\n');
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage() + "");
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOps >= mRecords.size()) {
+            try {
+                rewriteJournal();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage() + "");
+            }
+        }
+    }
+
+    private void trimToSize() {
+        while (mSize > mMaxSize && !mRecords.isEmpty()) {
+            removeRecord(mRecords.keySet().iterator().next());
+        }
+    }
+
+    private void removeRecord(String hash) {
+        Record record = mRecords.remove(hash);
+        if (record != null) {
+            mSize -= record.size;
+            mRedundantOps++;
+        }
+        new File(mDirectory, hash + ".0").delete();
+        new File(mDirectory, hash + ".1").delete();
+        journal("REMOVE " + hash);
+    }
+
+    private CacheEntry readEntry(String hash) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(mDirectory, hash + ".0"))));
+        int statusCode;
+        long expiresAt;
+        List<String> vary = new ArrayList<>();
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        try {
+            if (in.readInt() != META_VERSION) {
+                throw new IOException("unknown cache entry version");
+            }
+            statusCode = in.readInt();
+            expiresAt = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                vary.add(in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                List<String> values = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    values.add(in.readUTF());
+                }
+                headers.put(name.length() == 0 ? null : name, Collections.unmodifiableList(values));
+            }
+        } finally {
+            in.close();
+        }
+        File bodyFile = new File(mDirectory, hash + ".1");
+        byte[] body = new byte[(int) bodyFile.length()];
+        DataInputStream bodyIn = new DataInputStream(new FileInputStream(bodyFile));
+        try {
+            bodyIn.readFully(body);
+        } finally {
+            bodyIn.close();
+        }
+        return new CacheEntry(statusCode, Collections.unmodifiableMap(headers), body, expiresAt, vary);
+    }
+
+    private static byte[] encodeMeta(CacheEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(META_VERSION);
+        out.writeInt(entry.statusCode);
+        out.writeLong(entry.expiresAt);
+        out.writeInt(entry.vary.size());
+        for (String value : entry.vary) {
+            out.writeUTF(value);
+        }
+        out.writeInt(entry.headers.size());
+        for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+            out.writeUTF(header.getKey() == null ? "" : header.getKey());
+            List<String> values = header.getValue() == null ? Collections.<String>emptyList() : header.getValue();
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeUTF(value == null ? "" : value);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("can not write " + file);
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Record {
+        final long size;
+        final String baseHash;
+
+        Record(long size, String baseHash) {
+            this.size = size;
+            this.baseHash = baseHash;
+        }
+    }
+}
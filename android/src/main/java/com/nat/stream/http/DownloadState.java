@@ -0,0 +1,196 @@
+package com.nat.stream.http;
+
+import android.text.TextUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * On-disk state of a resumable download: the partial body lives in {@code <target>.tmp},
+ * its validators and byte counts in {@code <target>.tmp.meta}.
+ */
+
+class DownloadState {
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_WRITTEN = "written";
+
+    final File target;
+    final File partial;
+    private final File meta;
+    private final String url;
+    private String etag;
+    private String lastModified;
+    private long length = -1;
+    /**
+     * Size of the partial file when the state was last saved, -1 if unknown
+     */
+    private long written = -1;
+
+    private DownloadState(File target, String url) {
+        this.target = target;
+        this.partial = partialFile(target);
+        this.meta = new File(partial.getPath() + ".meta");
+        this.url = url;
+    }
+
+    static File partialFile(File target) {
+        return new File(target.getPath() + ".tmp");
+    }
+
+    /**
+     * State persisted by an earlier attempt at {@code url}, or a fresh one if there is none or it
+     * belongs to another url.
+     */
+    static DownloadState load(File target, String url) {
+        DownloadState state = new DownloadState(target, url);
+        if (!state.meta.exists() || !state.partial.exists()) {
+            return state;
+        }
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(state.meta);
+            properties.load(in);
+        } catch (IOException e) {
+            return state;
+        } finally {
+            closeQuietly(in);
+        }
+        if (!url.equals(properties.getProperty(KEY_URL))) {
+            return state;
+        }
+        state.etag = properties.getProperty(KEY_ETAG);
+        state.lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        state.length = parseLong(properties.getProperty(KEY_LENGTH));
+        state.written = parseLong(properties.getProperty(KEY_WRITTEN));
+        return state;
+    }
+
+    /**
+     * Offset to resume from, 0 if the partial body can not be validated against the server or
+     * is shorter than when the state was saved, i.e. the file was truncated since, or longer than
+     * the whole body.
+     */
+    long resumeOffset() {
+        if (ifRange() == null || !partial.exists()) {
+            return 0;
+        }
+        long size = partial.length();
+        if (size < written || length > 0 && size > length) {
+            return 0;
+        }
+        return size;
+    }
+
+    /**
+     * Validator for {@code If-Range}. Weak ETags are not allowed there, Last-Modified is used
+     * instead.
+     */
+    String ifRange() {
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * Whether the partial file already holds the whole body, e.g. after a 416 reply.
+     */
+    boolean isComplete() {
+        return length > 0 && partial.exists() && partial.length() == length;
+    }
+
+    /**
+     * Takes validators and total length from a 200 or 206 response.
+     *
+     * @param offset where the body of this response starts
+     */
+    void update(HttpURLConnection connection, long offset) {
+        etag = connection.getHeaderField("ETag");
+        lastModified = connection.getHeaderField("Last-Modified");
+        length = rangeLength(connection);
+        if (length < 0) {
+            long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+            length = contentLength < 0 ? -1 : offset + contentLength;
+        }
+    }
+
+    /**
+     * First byte position of a {@code Content-Range: bytes a-b/n} header, -1 if absent.
+     */
+    static long rangeStart(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        return dash < 0 ? -1 : parseLong(contentRange.substring("bytes ".length(), dash).trim());
+    }
+
+    /**
+     * Complete length of a {@code Content-Range: bytes a-b/n} header, -1 if absent or unknown.
+     */
+    static long rangeLength(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1));
+    }
+
+    void save() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, url);
+        if (etag != null) properties.setProperty(KEY_ETAG, etag);
+        if (lastModified != null) properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        properties.setProperty(KEY_LENGTH, String.valueOf(length));
+        written = partial.exists() ? partial.length() : 0;
+        properties.setProperty(KEY_WRITTEN, String.valueOf(written));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(meta);
+            properties.store(out, null);
+        } catch (IOException e) {
+            meta.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    void clear() {
+        meta.delete();
+    }
+
+    void discard() {
+        meta.delete();
+        partial.delete();
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.nat.stream.http;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Receives the {@link RequestMetrics} of every finished request, see
+ * {@link MetricsCollector} for one that aggregates them per host.
+ */
+
+public interface EventListener {
+
+    /**
+     * Called once per request, right before its response is delivered and on the same thread,
+     * so it must return quickly.
+     */
+    void onRequestFinished(RequestMetrics metrics);
+}
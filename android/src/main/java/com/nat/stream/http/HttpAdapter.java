@@ -31,13 +31,15 @@ public interface HttpAdapter {
         void onHeadersReceived(int statusCode, Map<String, List<String>> headers);
 
         /**
-         * post progress
+         * request body sent length (bytes), full length is {@link RequestBody#contentLength()};
+         * capped at {@link Integer#MAX_VALUE}
          * @param uploadProgress
          */
         void onHttpUploadProgress(int uploadProgress);
 
         /**
-         * response loaded length (bytes), full length should read from headers (content-length)
+         * response loaded length (bytes), full length should read from headers (content-length);
+         * capped at {@link Integer#MAX_VALUE}, {@link OnHttpTransferListener} has the long count
          * @param loadedLength
          */
         void onHttpResponseProgress(int loadedLength);
@@ -48,4 +50,28 @@ public interface HttpAdapter {
          */
         void onHttpFinish(Response response);
     }
+
+    interface OnHttpChunkListener extends OnHttpListener {
+
+        /**
+         * response body chunk, only delivered for {@link Request#stream} requests, whose
+         * {@link Response#originalData} stays null. Called on the worker thread and the next
+         * chunk is not read until it returns, so a slow consumer throttles the download.
+         * @param chunk buffer reused for the next chunk, copy what must be kept
+         * @param offset
+         * @param length
+         */
+        void onHttpResponseChunk(byte[] chunk, int offset, int length);
+    }
+
+    interface OnHttpTransferListener extends OnHttpListener {
+
+        /**
+         * response body progress, called along with {@link #onHttpResponseProgress(int)} which
+         * reports the wire bytes only; both differ for an encoded (e.g. gzip) response
+         * @param wireBytes body bytes received, comparable to content-length
+         * @param decodedBytes body bytes after content decoding
+         */
+        void onHttpTransferProgress(long wireBytes, long decodedBytes);
+    }
 }
@@ -0,0 +1,380 @@
+package com.nat.stream.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Bounded dispatcher shared by the http adapters. At most {@link #getMaxRequests()} requests
+ * run at once (and at most {@link #getMaxRequestsPerHost()} against one host); the rest wait
+ * in a bounded ready queue and are promoted as running requests finish, highest
+ * {@link Priority} first. A waiting request gains one priority level per {@link #AGING_MS} so
+ * background work is never starved, and at most {@link #getMaxBackgroundRequests()}
+ * background requests run at once.
+ */
+
+public class HttpDispatcher {
+    public static final int DEFAULT_MAX_REQUESTS = 6;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+    public static final int DEFAULT_MAX_BACKGROUND_REQUESTS = 2;
+    public static final long AGING_MS = 2000;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private int mMaxRequests;
+    private int mMaxRequestsPerHost;
+    private int mMaxQueuedRequests;
+    private int mMaxBackgroundRequests = DEFAULT_MAX_BACKGROUND_REQUESTS;
+    private final ThreadPoolExecutor mExecutorService;
+
+    private final Deque<AsyncCall> mReadyCalls = new ArrayDeque<>();
+    private final Map<Runnable, ScheduledFuture<?>> mDelayedCalls = new HashMap<>();
+    private ScheduledThreadPoolExecutor mScheduler;
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+    private int mRunningCount;
+    private int mRunningBackgroundCount;
+    private long mNextSequence;
+    private boolean mShutdown;
+
+    public HttpDispatcher() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    public HttpDispatcher(int maxRequests, int maxRequestsPerHost, int maxQueuedRequests) {
+        if (maxRequests < 1 || maxRequestsPerHost < 1 || maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("invalid dispatcher limits");
+        }
+        mMaxRequests = maxRequests;
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mMaxQueuedRequests = maxQueuedRequests;
+        mExecutorService = new ThreadPoolExecutor(maxRequests, maxRequests,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DispatcherThreadFactory("nat-stream-"));
+        mExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Task that is told when {@link #shutdown()} drops it from the queue, so the request it
+     * would have run can still be finished.
+     */
+    public interface DroppableTask extends Runnable {
+        /**
+         * Called on the thread shutting the dispatcher down, instead of {@link #run()}.
+         */
+        void onDropped();
+    }
+
+    /**
+     * Queue {@code task} for execution against {@code host} with {@link Priority#normal}.
+     *
+     * @throws RejectedExecutionException if the dispatcher is shut down or the ready queue is full
+     */
+    public void enqueue(String host, Runnable task) {
+        enqueue(host, Priority.normal, task);
+    }
+
+    /**
+     * Queue {@code task} for execution against {@code host}.
+     *
+     * @throws RejectedExecutionException if the dispatcher is shut down or the ready queue is full
+     */
+    public synchronized void enqueue(String host, Priority priority, Runnable task) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("dispatcher is shut down");
+        }
+        AsyncCall call = new AsyncCall(host == null ? "" : host, priority == null ? Priority.normal : priority,
+                task, mNextSequence++);
+        if (mReadyCalls.size() >= mMaxQueuedRequests && !canRun(call)) {
+            throw new RejectedExecutionException("too many queued requests: " + mReadyCalls.size());
+        }
+        mReadyCalls.add(call);
+        promoteCalls();
+    }
+
+    /**
+     * Queue {@code task} once {@code delayMs} elapsed, without holding a worker thread in the
+     * meantime. The task was already admitted once, so it is not subject to the ready queue
+     * limit; it is dropped if the dispatcher shuts down first, see {@link #shutdown()}.
+     *
+     * @throws RejectedExecutionException if the dispatcher is shut down
+     */
+    public synchronized void enqueueDelayed(final String host, final Priority priority, final Runnable task,
+                                            long delayMs) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("dispatcher is shut down");
+        }
+        ScheduledFuture<?> future = scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HttpDispatcher.this) {
+                    if (mDelayedCalls.remove(task) == null || mShutdown) return;
+                    mReadyCalls.add(new AsyncCall(host == null ? "" : host,
+                            priority == null ? Priority.normal : priority, task, mNextSequence++));
+                    promoteCalls();
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        mDelayedCalls.put(task, future);
+    }
+
+    /**
+     * Runs {@code task} on the dispatcher's timer thread after {@code delayMs}; it must not block.
+     */
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("dispatcher is shut down");
+        }
+        return scheduler().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes {@code task} from the ready queue, or from the delayed ones.
+     *
+     * @return false if it is not queued, i.e. it already started or was never enqueued
+     */
+    public synchronized boolean cancel(Runnable task) {
+        ScheduledFuture<?> delayed = mDelayedCalls.remove(task);
+        if (delayed != null) {
+            delayed.cancel(false);
+            return true;
+        }
+        Iterator<AsyncCall> it = mReadyCalls.iterator();
+        while (it.hasNext()) {
+            if (it.next().task == task) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    public synchronized void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+        }
+        if (maxRequests > mExecutorService.getMaximumPoolSize()) {
+            mExecutorService.setMaximumPoolSize(maxRequests);
+            mExecutorService.setCorePoolSize(maxRequests);
+        } else {
+            mExecutorService.setCorePoolSize(maxRequests);
+            mExecutorService.setMaximumPoolSize(maxRequests);
+        }
+        mMaxRequests = maxRequests;
+        promoteCalls();
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        promoteCalls();
+    }
+
+    public synchronized void setMaxQueuedRequests(int maxQueuedRequests) {
+        if (maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("maxQueuedRequests < 0: " + maxQueuedRequests);
+        }
+        mMaxQueuedRequests = maxQueuedRequests;
+    }
+
+    public synchronized int getMaxBackgroundRequests() {
+        return mMaxBackgroundRequests;
+    }
+
+    public synchronized void setMaxBackgroundRequests(int maxBackgroundRequests) {
+        if (maxBackgroundRequests < 1) {
+            throw new IllegalArgumentException("maxBackgroundRequests < 1: " + maxBackgroundRequests);
+        }
+        mMaxBackgroundRequests = maxBackgroundRequests;
+        promoteCalls();
+    }
+
+    public synchronized int runningCallsCount() {
+        return mRunningCount;
+    }
+
+    public synchronized int queuedCallsCount() {
+        return mReadyCalls.size();
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * Stops accepting tasks and drops the queued ones, those waiting for a retry included; each
+     * {@link DroppableTask} among them is told so. The running requests finish, their deadline
+     * timers still fire, and the worker threads stop after them.
+     */
+    public void shutdown() {
+        ScheduledThreadPoolExecutor scheduler;
+        List<Runnable> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (mShutdown) return;
+            mShutdown = true;
+            for (AsyncCall call : mReadyCalls) {
+                dropped.add(call.task);
+            }
+            mReadyCalls.clear();
+            for (Map.Entry<Runnable, ScheduledFuture<?>> entry : mDelayedCalls.entrySet()) {
+                entry.getValue().cancel(false);
+                dropped.add(entry.getKey());
+            }
+            mDelayedCalls.clear();
+            scheduler = mScheduler;
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        mExecutorService.shutdown();
+        for (Runnable task : dropped) {
+            if (task instanceof DroppableTask) {
+                ((DroppableTask) task).onDropped();
+            }
+        }
+    }
+
+    private ScheduledThreadPoolExecutor scheduler() {
+        if (mScheduler == null) {
+            mScheduler = new ScheduledThreadPoolExecutor(1, new DispatcherThreadFactory("nat-stream-timer-"));
+        }
+        return mScheduler;
+    }
+
+    private boolean canRun(AsyncCall call) {
+        if (mRunningCount >= mMaxRequests) return false;
+        if (call.priority == Priority.background && mRunningBackgroundCount >= mMaxBackgroundRequests) {
+            return false;
+        }
+        Integer running = mRunningPerHost.get(call.host);
+        return running == null || running < mMaxRequestsPerHost;
+    }
+
+    private void promoteCalls() {
+        if (mShutdown) return;
+        long now = System.nanoTime();
+        while (mRunningCount < mMaxRequests) {
+            AsyncCall next = null;
+            for (AsyncCall call : mReadyCalls) {
+                if (canRun(call) && (next == null || call.isBefore(next, now))) {
+                    next = call;
+                }
+            }
+            if (next == null) return;
+            mReadyCalls.remove(next);
+            mRunningCount++;
+            if (next.priority == Priority.background) {
+                mRunningBackgroundCount++;
+            }
+            Integer running = mRunningPerHost.get(next.host);
+            mRunningPerHost.put(next.host, running == null ? 1 : running + 1);
+            mExecutorService.execute(next);
+        }
+    }
+
+    private synchronized void finished(AsyncCall call) {
+        mRunningCount--;
+        if (call.priority == Priority.background) {
+            mRunningBackgroundCount--;
+        }
+        Integer running = mRunningPerHost.get(call.host);
+        if (running == null || running <= 1) {
+            mRunningPerHost.remove(call.host);
+        } else {
+            mRunningPerHost.put(call.host, running - 1);
+        }
+        promoteCalls();
+    }
+
+    /**
+     * Host part of {@code url}, or an empty string if it cannot be parsed.
+     */
+    public static String hostOf(String url) {
+        if (url == null) return "";
+        try {
+            String host = new URL(url).getHost();
+            return host == null ? "" : host;
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private final class AsyncCall implements Runnable {
+        private final String host;
+        private final Priority priority;
+        private final Runnable task;
+        private final long sequence;
+        private final long enqueuedAt = System.nanoTime();
+
+        private AsyncCall(String host, Priority priority, Runnable task, long sequence) {
+            this.host = host;
+            this.priority = priority;
+            this.task = task;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Priority level after aging, lower runs first.
+         */
+        private long rank(long now) {
+            long aged = TimeUnit.NANOSECONDS.toMillis(now - enqueuedAt) / AGING_MS;
+            return Math.max(priority.ordinal() - aged, 0);
+        }
+
+        private boolean isBefore(AsyncCall other, long now) {
+            long rank = rank(now);
+            long otherRank = other.rank(now);
+            return rank != otherRank ? rank < otherRank : sequence < other.sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        DispatcherThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.nat.stream.http;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * In-memory response cache bounded by the total size of the cached bodies, evicting the least
+ * recently used entries first.
+ */
+
+public class MemoryCache {
+    public static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+    private final long mMaxSize;
+    private long mSize;
+    private final LinkedHashMap<String, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Vary header names of the last response stored per base key
+     */
+    private final Map<String, List<String>> mVaryNames = new HashMap<>();
+
+    public MemoryCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize max total body bytes held
+     */
+    public MemoryCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Entry matching the request with {@code baseKey} and headers, fresh or not.
+     */
+    public synchronized CacheEntry get(String baseKey, Map<String, String> requestHeaders) {
+        List<String> varyNames = mVaryNames.get(baseKey);
+        if (varyNames == null) {
+            return null;
+        }
+        List<String> vary = CacheEntry.varyValues(requestHeaders, varyNames);
+        return vary == null ? null : mEntries.get(CacheEntry.key(baseKey, vary));
+    }
+
+    public synchronized void put(String baseKey, List<String> varyNames, CacheEntry entry) {
+        long size = entry.body == null ? 0 : entry.body.length;
+        if (size > mMaxSize || entry.vary == null) {
+            return;
+        }
+        String key = CacheEntry.key(baseKey, entry.vary);
+        CacheEntry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mSize -= previous.body == null ? 0 : previous.body.length;
+        }
+        mVaryNames.put(baseKey, varyNames);
+        mSize += size;
+        trimToSize();
+    }
+
+    public synchronized void remove(String baseKey) {
+        Iterator<Map.Entry<String, CacheEntry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CacheEntry> entry = it.next();
+            if (entry.getKey().equals(baseKey) || entry.getKey().startsWith(baseKey + "\n")) {
+                mSize -= entry.getValue().body == null ? 0 : entry.getValue().body.length;
+                it.remove();
+            }
+        }
+        mVaryNames.remove(baseKey);
+    }
+
+    public synchronized void evictAll() {
+        mEntries.clear();
+        mVaryNames.clear();
+        mSize = 0;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, CacheEntry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            CacheEntry eldest = it.next().getValue();
+            mSize -= eldest.body == null ? 0 : eldest.body.length;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.nat.stream.http;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * {@link EventListener} that aggregates request metrics per host: counts, bytes and latency
+ * histograms of every {@link Phase}, from which p50/p95/p99 are read. The histograms use
+ * logarithmic buckets with a relative error of at most 1/8, so each takes constant memory
+ * however many requests it records.
+ */
+
+public class MetricsCollector implements EventListener {
+
+    public enum Phase {
+        queueWait, connect, firstByte, download, total
+    }
+
+    private final Map<String, HostMetrics> mHosts = new HashMap<>();
+
+    @Override
+    public synchronized void onRequestFinished(RequestMetrics metrics) {
+        HostMetrics host = mHosts.get(metrics.host);
+        if (host == null) {
+            host = new HostMetrics();
+            mHosts.put(metrics.host, host);
+        }
+        host.record(metrics);
+    }
+
+    /**
+     * Latency of {@code phase} below which {@code quantile} of the requests to {@code host} fall,
+     * e.g. 0.95 for p95.
+     *
+     * @return milliseconds, -1 if no request to {@code host} was recorded
+     */
+    public synchronized long percentile(String host, Phase phase, double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile not in [0, 1]: " + quantile);
+        }
+        HostMetrics metrics = mHosts.get(host);
+        return metrics == null ? -1 : metrics.histograms[phase.ordinal()].percentile(quantile);
+    }
+
+    /**
+     * Aggregates of every host as plain maps, ready to be handed to JS:
+     * {@code {host: {count, failures, retries, cacheHits, bytesSent, bytesReceived,
+     * <phase>: {p50, p95, p99, max}}}}, in milliseconds.
+     */
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        for (Map.Entry<String, HostMetrics> entry : mHosts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return snapshot;
+    }
+
+    public synchronized void reset() {
+        mHosts.clear();
+    }
+
+    private static final class HostMetrics {
+        private long count;
+        private long failures;
+        private long retries;
+        private long cacheHits;
+        private long bytesSent;
+        private long bytesReceived;
+        private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+        HostMetrics() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        void record(RequestMetrics metrics) {
+            count++;
+            if (metrics.outcome != RequestMetrics.Outcome.success) failures++;
+            if (metrics.cacheStatus == RequestMetrics.CacheStatus.hit
+                    || metrics.cacheStatus == RequestMetrics.CacheStatus.revalidated) {
+                cacheHits++;
+            }
+            retries += metrics.retries;
+            bytesSent += metrics.bytesSent;
+            bytesReceived += metrics.bytesReceived;
+            histograms[Phase.queueWait.ordinal()].record(metrics.queueWaitMs);
+            histograms[Phase.connect.ordinal()].record(metrics.connectMs);
+            histograms[Phase.firstByte.ordinal()].record(metrics.firstByteMs);
+            histograms[Phase.download.ordinal()].record(metrics.downloadMs);
+            histograms[Phase.total.ordinal()].record(metrics.totalMs);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            map.put("failures", failures);
+            map.put("retries", retries);
+            map.put("cacheHits", cacheHits);
+            map.put("bytesSent", bytesSent);
+            map.put("bytesReceived", bytesReceived);
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = histograms[phase.ordinal()];
+                Map<String, Object> percentiles = new LinkedHashMap<>();
+                percentiles.put("p50", histogram.percentile(0.5));
+                percentiles.put("p95", histogram.percentile(0.95));
+                percentiles.put("p99", histogram.percentile(0.99));
+                percentiles.put("max", histogram.max);
+                map.put(phase.name(), percentiles);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Values below {@link #LINEAR} get a bucket each, larger ones one of {@link #SUB_BUCKETS}
+     * buckets per power of two.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int LINEAR = SUB_BUCKETS * 2;
+        /**
+         * Values from 2^MAX_BIT ms, about 35 years, share the last bucket
+         */
+        private static final int MAX_BIT = 40;
+        private static final int BUCKETS = LINEAR + (MAX_BIT - SUB_BITS - 1) * SUB_BUCKETS;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * @return upper bound of the bucket holding the value at {@code quantile}, capped at the
+         * largest value recorded; -1 if empty
+         */
+        long percentile(double quantile) {
+            if (total == 0) return -1;
+            long rank = Math.max((long) Math.ceil(quantile * total), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int index(long value) {
+            if (value < LINEAR) return (int) value;
+            int bit = 63 - Long.numberOfLeadingZeros(value);
+            if (bit >= MAX_BIT) return BUCKETS - 1;
+            int sub = (int) (value >>> (bit - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR + (bit - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < LINEAR) return index;
+            int bit = (index - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+            int sub = (index - LINEAR) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (bit - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.nat.stream.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * multipart/form-data body. Each part is streamed from its own {@link RequestBody}, so file
+ * parts are read from disk while they are sent, and the total length is known up front as
+ * long as every part's length is.
+ */
+
+public class MultipartBody extends RequestBody {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DASHDASH = {'-', '-'};
+
+    private final String mBoundary;
+    private final List<Part> mParts;
+
+    private MultipartBody(String boundary, List<Part> parts) {
+        mBoundary = boundary;
+        mParts = parts;
+    }
+
+    public String boundary() {
+        return mBoundary;
+    }
+
+    public List<Part> parts() {
+        return mParts;
+    }
+
+    @Override
+    public String contentType() {
+        return "multipart/form-data; boundary=" + mBoundary;
+    }
+
+    @Override
+    public long contentLength() {
+        byte[] boundary = utf8(mBoundary);
+        long length = 0;
+        for (Part part : mParts) {
+            long bodyLength = part.body.contentLength();
+            if (bodyLength < 0) {
+                return -1;
+            }
+            length += DASHDASH.length + boundary.length + CRLF.length
+                    + part.headers.length + bodyLength + CRLF.length;
+        }
+        return length + DASHDASH.length + boundary.length + DASHDASH.length + CRLF.length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for (Part part : mParts) {
+            if (!part.body.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] boundary = utf8(mBoundary);
+        for (Part part : mParts) {
+            out.write(DASHDASH);
+            out.write(boundary);
+            out.write(CRLF);
+            out.write(part.headers);
+            part.body.writeTo(out);
+            out.write(CRLF);
+        }
+        out.write(DASHDASH);
+        out.write(boundary);
+        out.write(DASHDASH);
+        out.write(CRLF);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static final class Part {
+        private final byte[] headers;
+        private final RequestBody body;
+
+        private Part(byte[] headers, RequestBody body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public RequestBody body() {
+            return body;
+        }
+    }
+
+    public static class Builder {
+        private String boundary = UUID.randomUUID().toString();
+        private final List<Part> parts = new ArrayList<>();
+
+        public Builder setBoundary(String boundary) {
+            this.boundary = boundary;
+            return this;
+        }
+
+        public Builder addFormDataPart(String name, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("value == null");
+            }
+            return addFormDataPart(name, null, RequestBody.create(value));
+        }
+
+        /**
+         * @param contentType null for application/octet-stream
+         */
+        public Builder addFormDataPart(String name, String filename, File file, String contentType) {
+            final String type = contentType == null ? "application/octet-stream" : contentType;
+            final RequestBody fileBody = RequestBody.create(file);
+            return addFormDataPart(name, filename == null ? file.getName() : filename, new RequestBody() {
+                @Override
+                public String contentType() {
+                    return type;
+                }
+
+                @Override
+                public long contentLength() {
+                    return fileBody.contentLength();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    fileBody.writeTo(out);
+                }
+            });
+        }
+
+        public Builder addFormDataPart(String name, String filename, RequestBody body) {
+            if (name == null) {
+                throw new IllegalArgumentException("name == null");
+            }
+            StringBuilder headers = new StringBuilder("Content-Disposition: form-data; name=");
+            appendQuoted(headers, name);
+            if (filename != null) {
+                headers.append("; filename=");
+                appendQuoted(headers, filename);
+            }
+            headers.append("\r\n");
+            if (body.contentType() != null) {
+                headers.append("Content-Type: ").append(body.contentType()).append("\r\n");
+            }
+            headers.append("\r\n");
+            parts.add(new Part(utf8(headers.toString()), body));
+            return this;
+        }
+
+        public MultipartBody build() {
+            if (parts.isEmpty()) {
+                throw new IllegalStateException("multipart body needs at least one part");
+            }
+            return new MultipartBody(boundary, Collections.unmodifiableList(new ArrayList<>(parts)));
+        }
+
+        private static void appendQuoted(StringBuilder target, String key) {
+            target.append('"');
+            for (int i = 0, len = key.length(); i < len; i++) {
+                char ch = key.charAt(i);
+                switch (ch) {
+                    case '\n':
+                        target.append("%0A");
+                        break;
+                    case '\r':
+                        target.append("%0D");
+                        break;
+                    case '"':
+                        target.append("%22");
+                        break;
+                    default:
+                        target.append(ch);
+                        break;
+                }
+            }
+            target.append('"');
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.nat.stream.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * {@link DefaultHttpAdapter} running its connections on OkHttp, which multiplexes requests to
+ * the same host over a shared HTTP/2 connection where the server supports it, and pools
+ * HTTP/1.1 connections otherwise. Everything above the connection, i.e. decoding, retries,
+ * deadlines, cancellation and downloads, behaves as in {@link DefaultHttpAdapter}.
+ *
+ * Needs com.squareup.okhttp3:okhttp-urlconnection 3.x on the app's classpath, the library
+ * only compiles against it; OkHttp 4 dropped that artifact.
+ */
+
+public class OkHttpAdapter extends DefaultHttpAdapter {
+    private final OkHttpClient mBaseClient;
+    private volatile OkHttpClient mClient;
+    // the adapter drives HttpURLConnections, which OkHttp only offers through the deprecated
+    // OkUrlFactory; referenced by its full name so the import does not warn either
+    @SuppressWarnings("deprecation")
+    private volatile okhttp3.OkUrlFactory mUrlFactory;
+
+    public OkHttpAdapter(HttpDispatcher dispatcher) {
+        this(dispatcher, new OkHttpClient());
+    }
+
+    /**
+     * @param client client whose protocols and TLS settings are used; its timeouts are
+     *               overridden per request and its pool by {@link #setConnectionPool}
+     */
+    public OkHttpAdapter(HttpDispatcher dispatcher, OkHttpClient client) {
+        super(dispatcher);
+        if (client == null) {
+            throw new IllegalArgumentException("client == null");
+        }
+        mBaseClient = client;
+        buildClient(getConnectionPool());
+    }
+
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Sizes OkHttp's pool, taking effect for the next connections.
+     */
+    @Override
+    protected void configureConnectionPool(ConnectionPool connectionPool) {
+        buildClient(connectionPool);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void buildClient(final ConnectionPool connectionPool) {
+        OkHttpClient previous = mClient;
+        mClient = mBaseClient.newBuilder()
+                // retries are up to the adapter's RetryPolicy, which knows which requests are safe
+                .retryOnConnectionFailure(false)
+                .connectionPool(new okhttp3.ConnectionPool(Math.max(connectionPool.getMaxIdleConnections(), 1),
+                        connectionPool.getKeepAliveDurationMs(), TimeUnit.MILLISECONDS))
+                .eventListenerFactory(new EventListener.Factory() {
+                    @Override
+                    public EventListener create(Call call) {
+                        return new ReuseListener(connectionPool);
+                    }
+                })
+                .build();
+        mUrlFactory = new okhttp3.OkUrlFactory(mClient);
+        if (previous != null) {
+            previous.connectionPool().evictAll();
+        }
+    }
+
+    @Override
+    protected void connectionAcquired(Request request) {
+        // counted by ReuseListener
+    }
+
+    @Override
+    protected void connectionReleased(Request request, boolean reusable) {
+    }
+
+    @Override
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        return mUrlFactory.open(url);
+    }
+
+    /**
+     * Counts a call's connection as a hit unless OkHttp had to connect a new one for it.
+     */
+    private static final class ReuseListener extends EventListener {
+        private final ConnectionPool mConnectionPool;
+        private boolean mConnected;
+
+        ReuseListener(ConnectionPool connectionPool) {
+            mConnectionPool = connectionPool;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (mConnected) {
+                mConnectionPool.recordMiss();
+            } else {
+                mConnectionPool.recordHit();
+            }
+            mConnected = false;
+        }
+    }
+}
@@ -14,24 +14,72 @@ public class Options {
     private String url;
     private Map<String, String> headers;
     private String body;
+    private RequestBody requestBody;
     private Type type = Type.text;
     private int timeout = Constant.DEFAULT_TIMEOUT_MS;
+    private boolean stream;
+    private String saveTo;
+    private boolean resumable;
+    private int segments;
+    private long minSegmentSize;
+    private boolean gzip;
+    private ResponseType responseType = ResponseType.text;
+    private String tag;
+    private Priority priority = Priority.normal;
+    private boolean idempotent;
+    private int connectTimeout;
+    private int readTimeout;
+    private long deadline;
 
     private Options(String method,
                     String url,
                     Map<String, String> headers,
                     String body,
+                    RequestBody requestBody,
                     Type type,
-                    int timeout) {
+                    int timeout,
+                    boolean stream,
+                    String saveTo,
+                    boolean resumable,
+                    int segments,
+                    long minSegmentSize,
+                    boolean gzip,
+                    ResponseType responseType,
+                    String tag,
+                    Priority priority,
+                    boolean idempotent,
+                    int connectTimeout,
+                    int readTimeout,
+                    long deadline) {
         this.method = method;
         this.url = url;
         this.headers = headers;
         this.body = body;
+        this.requestBody = requestBody;
         this.type = type;
+        // an explicit timeout still bounds both phases, as it always did
+        this.connectTimeout = connectTimeout > 0 ? connectTimeout
+                : timeout > 0 ? timeout : Constant.DEFAULT_CONNECT_TIMEOUT_MS;
         if (timeout == 0) {
             timeout = Constant.DEFAULT_TIMEOUT_MS;
         }
         this.timeout = timeout;
+        this.readTimeout = readTimeout > 0 ? readTimeout : timeout;
+        this.deadline = deadline;
+        this.stream = stream;
+        this.saveTo = saveTo;
+        this.resumable = resumable;
+        this.segments = segments;
+        this.minSegmentSize = minSegmentSize;
+        this.gzip = gzip;
+        if (responseType != null) {
+            this.responseType = responseType;
+        }
+        this.tag = tag;
+        if (priority != null) {
+            this.priority = priority;
+        }
+        this.idempotent = idempotent;
     }
 
     public String getMethod() {
@@ -50,23 +98,75 @@ public class Options {
         return body;
     }
 
+    public RequestBody getRequestBody() {
+        return requestBody;
+    }
+
     public Type getType() {
         return type;
     }
 
     public int getTimeout() { return timeout; }
 
+    public boolean isStream() { return stream; }
+
+    public String getSaveTo() { return saveTo; }
+
+    public boolean isResumable() { return resumable; }
+
+    public int getSegments() { return segments; }
+
+    public long getMinSegmentSize() { return minSegmentSize; }
+
+    public boolean isGzip() { return gzip; }
+
+    public ResponseType getResponseType() { return responseType; }
+
+    public String getTag() { return tag; }
+
+    public Priority getPriority() { return priority; }
+
+    public boolean isIdempotent() { return idempotent; }
+
+    public int getConnectTimeout() { return connectTimeout; }
+
+    public int getReadTimeout() { return readTimeout; }
+
+    public long getDeadline() { return deadline; }
+
     public enum Type {
         json, text,jsonp
     }
 
+    /**
+     * How the response body is handed back: text decoded with the Content-Type charset, parsed
+     * json, jsonp unwrapped and parsed, or binary as base64
+     */
+    public enum ResponseType {
+        text, json, jsonp, binary
+    }
+
     public static class Builder {
         private String method;
         private String url;
         private Map<String, String> headers = new HashMap<>();
         private String body;
+        private RequestBody requestBody;
         private Type type;
         private int timeout;
+        private boolean stream;
+        private String saveTo;
+        private boolean resumable;
+        private int segments;
+        private long minSegmentSize;
+        private boolean gzip;
+        private ResponseType responseType;
+        private String tag;
+        private Priority priority;
+        private boolean idempotent;
+        private int connectTimeout;
+        private int readTimeout;
+        private long deadline;
 
         public Builder setMethod(String method) {
             this.method = method;
@@ -88,6 +188,16 @@ public class Options {
             return this;
         }
 
+        /**
+         * stream the body from a file, stream or chunk source instead of a string
+         * @param requestBody
+         * @return
+         */
+        public Builder setBody(RequestBody requestBody) {
+            this.requestBody = requestBody;
+            return this;
+        }
+
         /**
          * default text
          * json = jsonp
@@ -115,8 +225,163 @@ public class Options {
             return this;
         }
 
+        /**
+         * deliver the response body in chunks as it arrives
+         * @param stream
+         * @return
+         */
+        public Builder setStream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * write the response body to this file instead of memory
+         * @param saveTo absolute path
+         * @return
+         */
+        public Builder setSaveTo(String saveTo) {
+            this.saveTo = saveTo;
+            return this;
+        }
+
+        /**
+         * resume an interrupted saveTo download instead of starting over
+         * @param resumable
+         * @return
+         */
+        public Builder setResumable(boolean resumable) {
+            this.resumable = resumable;
+            return this;
+        }
+
+        /**
+         * split a saveTo download into this many concurrent ranges, 0 or 1 for one connection;
+         * only GET requests without a body are split
+         * @param segments
+         * @return
+         */
+        public Builder setSegments(int segments) {
+            this.segments = segments;
+            return this;
+        }
+
+        /**
+         * smallest range fetched on its own connection, 0 for the default
+         * @param minSegmentSize bytes
+         * @return
+         */
+        public Builder setMinSegmentSize(long minSegmentSize) {
+            this.minSegmentSize = minSegmentSize;
+            return this;
+        }
+
+        /**
+         * gzip the request body while it is sent, with Content-Encoding: gzip
+         * @param gzip
+         * @return
+         */
+        public Builder setGzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /**
+         * default text, unknown values are read as text
+         * @param responseType
+         * @return
+         */
+        public Builder setResponseType(String responseType) {
+            this.responseType = ResponseType.text;
+            for (ResponseType value : ResponseType.values()) {
+                if (value.name().equals(responseType)) {
+                    this.responseType = value;
+                }
+            }
+            return this;
+        }
+
+        public Builder setResponseType(ResponseType responseType) {
+            this.responseType = responseType;
+            return this;
+        }
+
+        /**
+         * group the request can be canceled with, see StreamModule#cancelAll(String)
+         * @param tag
+         * @return
+         */
+        public Builder setTag(String tag) {
+            this.tag = tag;
+            return this;
+        }
+
+        /**
+         * critical, normal or background, default normal, unknown values are read as normal
+         * @param priority
+         * @return
+         */
+        public Builder setPriority(String priority) {
+            this.priority = Priority.normal;
+            for (Priority value : Priority.values()) {
+                if (value.name().equals(priority)) {
+                    this.priority = value;
+                }
+            }
+            return this;
+        }
+
+        public Builder setPriority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * the request may be retried even though its method is not idempotent, e.g. a POST
+         * the server deduplicates
+         * @param idempotent
+         * @return
+         */
+        public Builder setIdempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+            return this;
+        }
+
+        /**
+         * time out of establishing the connection, defaults to the timeout if set, 10s otherwise
+         * @param connectTimeout
+         * @return
+         */
+        public Builder setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * longest wait for data once connected, defaults to the timeout
+         * @param readTimeout
+         * @return
+         */
+        public Builder setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * overall time the request may take from the fetch call on, retries and redirects
+         * included, 0 for no limit
+         * @param deadline
+         * @return
+         */
+        public Builder setDeadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
         public Options createOptions() {
-            return new Options(method, url, headers, body, type, timeout);
+            return new Options(method, url, headers, body, requestBody, type, timeout, stream, saveTo, resumable,
+                    segments, minSegmentSize, gzip, responseType, tag, priority, idempotent,
+                    connectTimeout, readTimeout, deadline);
         }
     }
 }
\ No newline at end of file
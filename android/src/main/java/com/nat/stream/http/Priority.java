@@ -0,0 +1,12 @@
+package com.nat.stream.http;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Scheduling priority of a {@link Request} in the {@link HttpDispatcher} ready queue, highest
+ * first.
+ */
+
+public enum Priority {
+    critical, normal, background
+}
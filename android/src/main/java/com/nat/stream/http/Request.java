@@ -2,7 +2,9 @@ package com.nat.stream.http;
 
 import com.nat.stream.Constant;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by xuqinchao on 17/1/20.
@@ -30,12 +32,118 @@ public class Request {
     public String body;
 
     /**
-     * The request time out
+     * Streamed request body, takes precedence over {@link #body}
+     */
+    public RequestBody requestBody;
+
+    /**
+     * Compress the request body with gzip while it is written, sending it chunked with
+     * Content-Encoding: gzip
+     */
+    public boolean gzip;
+
+    /**
+     * Position in the dispatcher's ready queue, see {@link HttpDispatcher}
+     */
+    public Priority priority = Priority.normal;
+
+    /**
+     * Safe to send more than once, so it is retried like GET or PUT whatever its method, see
+     * {@link RetryPolicy}
+     */
+    public boolean idempotent;
+
+    /**
+     * Deliver the response body in chunks to an {@link HttpAdapter.OnHttpChunkListener}
+     * instead of buffering it
+     */
+    public boolean stream;
+
+    /**
+     * Absolute path the response body is written to instead of being kept in memory
+     */
+    public String saveTo;
+
+    /**
+     * Keep the partial {@link #saveTo} file of a failed transfer and resume it with a Range
+     * request next time
+     */
+    public boolean resumable;
+
+    /**
+     * Number of concurrent byte ranges a {@link SegmentedDownloader} splits {@link #saveTo}
+     * downloads into
+     */
+    public int segments = SegmentedDownloader.DEFAULT_SEGMENTS;
+
+    /**
+     * Smallest range a {@link SegmentedDownloader} fetches on its own connection
+     */
+    public long minSegmentSize = SegmentedDownloader.DEFAULT_MIN_SEGMENT_SIZE;
+
+    /**
+     * Cancels the request when signaled, may be null
+     */
+    public CancelSignal cancelSignal;
+
+    /**
+     * The request time out, for connect and read unless set apart below
      */
     public int timeoutMs = Constant.DEFAULT_TIMEOUT_MS;
 
+    /**
+     * Time out of establishing the connection, 0 to use {@link #timeoutMs}
+     */
+    public int connectTimeoutMs;
+
+    /**
+     * Longest wait for data once connected, 0 to use {@link #timeoutMs}
+     */
+    public int readTimeoutMs;
+
+    /**
+     * {@link System#nanoTime()} by which the request, retries and redirects included, must be
+     * done or fail, 0 for none
+     */
+    public long deadlineNanos;
+
     /**
      * The default timeout
      */
     public static final int DEFAULT_TIMEOUT_MS = 3000;
+
+    /**
+     * Copy of this request with its own header map, for adapters that add headers
+     */
+    public Request copy() {
+        Request request = new Request();
+        request.paramMap = paramMap == null ? new HashMap<String, String>() : new HashMap<>(paramMap);
+        request.url = url;
+        request.method = method;
+        request.body = body;
+        request.requestBody = requestBody;
+        request.gzip = gzip;
+        request.priority = priority;
+        request.idempotent = idempotent;
+        request.stream = stream;
+        request.saveTo = saveTo;
+        request.resumable = resumable;
+        request.segments = segments;
+        request.minSegmentSize = minSegmentSize;
+        request.timeoutMs = timeoutMs;
+        request.connectTimeoutMs = connectTimeoutMs;
+        request.readTimeoutMs = readTimeoutMs;
+        request.deadlineNanos = deadlineNanos;
+        request.cancelSignal = cancelSignal;
+        return request;
+    }
+
+    /**
+     * Milliseconds left until {@link #deadlineNanos}, {@link Long#MAX_VALUE} without a deadline
+     * and 0 once it passed
+     */
+    public long remainingMs() {
+        if (deadlineNanos == 0) return Long.MAX_VALUE;
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()), 0);
+    }
 }
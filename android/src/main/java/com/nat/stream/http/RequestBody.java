@@ -0,0 +1,153 @@
+package com.nat.stream.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Source of a request body that is streamed into the connection instead of being held in memory
+ * as one string.
+ */
+
+public abstract class RequestBody {
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Content-Type sent when the request does not set one, null for none
+     */
+    public String contentType() {
+        return null;
+    }
+
+    /**
+     * Length in bytes, -1 if unknown in which case the body is sent chunked
+     */
+    public long contentLength() {
+        return -1;
+    }
+
+    /**
+     * Whether {@link #writeTo(OutputStream)} may be called again for another attempt
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    public static RequestBody create(String content) {
+        try {
+            return create(content.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static RequestBody create(final byte[] content) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                // large arrays still go through in slices so progress is reported
+                for (int offset = 0; offset < content.length; offset += BUFFER_SIZE) {
+                    out.write(content, offset, Math.min(BUFFER_SIZE, content.length - offset));
+                }
+            }
+        };
+    }
+
+    public static RequestBody create(final File file) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                InputStream in = new FileInputStream(file);
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Body read once from {@code in}, which is closed when written.
+     *
+     * @param length bytes that {@code in} will provide, -1 if unknown
+     */
+    public static RequestBody create(final InputStream in, final long length) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Body of unknown length pulled from {@code source} chunk by chunk while it is sent.
+     */
+    public static RequestBody create(final ChunkSource source) {
+        return new RequestBody() {
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] chunk;
+                while ((chunk = source.nextChunk()) != null) {
+                    out.write(chunk);
+                }
+            }
+        };
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] data = BufferPool.SHARED.acquire(BUFFER_SIZE);
+        try {
+            int nRead;
+            while ((nRead = in.read(data, 0, BUFFER_SIZE)) != -1) {
+                out.write(data, 0, nRead);
+            }
+        } finally {
+            BufferPool.SHARED.release(data);
+        }
+    }
+
+    public interface ChunkSource {
+        /**
+         * @return the next chunk to send, null once the body is complete
+         */
+        byte[] nextChunk() throws IOException;
+    }
+}
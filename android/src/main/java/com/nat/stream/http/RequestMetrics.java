@@ -0,0 +1,175 @@
+package com.nat.stream.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Where the time of one request went, handed to an {@link EventListener} with its
+ * {@link Response}. Phases that did not happen, e.g. connecting for a response served from
+ * the cache, stay 0; connect, first byte and download are those of the last attempt.
+ */
+
+public class RequestMetrics {
+
+    public enum Outcome {
+        /**
+         * 2xx or 3xx response
+         */
+        success,
+        /**
+         * the server answered with an error status
+         */
+        httpError,
+        /**
+         * no response, the connection failed
+         */
+        networkError,
+        canceled,
+        timedOut
+    }
+
+    public enum CacheStatus {
+        /**
+         * the request did not go through a cache
+         */
+        none,
+        /**
+         * served from the cache without contacting the server
+         */
+        hit,
+        /**
+         * the cached response was stale and the server confirmed it with a 304
+         */
+        revalidated,
+        /**
+         * looked up and not found, or not fresh and without validators
+         */
+        miss
+    }
+
+    public final String url;
+
+    public final String method;
+
+    /**
+     * Host part of {@link #url}, empty if it cannot be parsed
+     */
+    public final String host;
+
+    /**
+     * Time spent waiting in the {@link HttpDispatcher} ready queue, summed over all attempts
+     */
+    public long queueWaitMs;
+
+    /**
+     * Time to get a connection: dns, tcp and tls handshakes, or ~0 for a pooled one
+     */
+    public long connectMs;
+
+    /**
+     * From the request being sent to the response headers
+     */
+    public long firstByteMs;
+
+    /**
+     * From the response headers to the end of the body
+     */
+    public long downloadMs;
+
+    /**
+     * From the request being handed to the adapter to the response being delivered
+     */
+    public long totalMs;
+
+    /**
+     * Request body bytes written to the connection, after compression
+     */
+    public long bytesSent;
+
+    /**
+     * Response body bytes read off the connection, before decoding
+     */
+    public long bytesReceived;
+
+    public int retries;
+
+    public CacheStatus cacheStatus = CacheStatus.none;
+
+    public Outcome outcome;
+
+    /**
+     * Status code of the delivered response, -1 if there is none
+     */
+    public int statusCode = -1;
+
+    /**
+     * {@link System#nanoTime()} at which the request was handed to the adapter
+     */
+    final long startNanos;
+
+    /**
+     * Starts the clock of {@code request}, call it when the request is handed to the adapter.
+     */
+    public RequestMetrics(Request request) {
+        url = request.url;
+        method = request.method == null ? "GET" : request.method;
+        host = HttpDispatcher.hostOf(request.url);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Copy for a response delivered again, e.g. by the cache after a revalidation.
+     */
+    public RequestMetrics copy() {
+        RequestMetrics metrics = new RequestMetrics(this);
+        metrics.queueWaitMs = queueWaitMs;
+        metrics.connectMs = connectMs;
+        metrics.firstByteMs = firstByteMs;
+        metrics.downloadMs = downloadMs;
+        metrics.totalMs = totalMs;
+        metrics.bytesSent = bytesSent;
+        metrics.bytesReceived = bytesReceived;
+        metrics.retries = retries;
+        metrics.cacheStatus = cacheStatus;
+        metrics.outcome = outcome;
+        metrics.statusCode = statusCode;
+        return metrics;
+    }
+
+    private RequestMetrics(RequestMetrics other) {
+        url = other.url;
+        method = other.method;
+        host = other.host;
+        startNanos = other.startNanos;
+    }
+
+    /**
+     * Fills in the outcome and total time of {@code response}, which is about to be delivered.
+     */
+    public void finish(Response response) {
+        totalMs = elapsedMs(startNanos, System.nanoTime());
+        statusCode = response.statusCode;
+        outcome = outcomeOf(response);
+    }
+
+    static Outcome outcomeOf(Response response) {
+        if (response.canceled) return Outcome.canceled;
+        if (response.timedOut) return Outcome.timedOut;
+        if (response.statusCode < 0) return Outcome.networkError;
+        return response.errorCode > 0 ? Outcome.httpError : Outcome.success;
+    }
+
+    static long elapsedMs(long fromNanos, long toNanos) {
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos), 0);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url + " " + outcome + " " + statusCode
+                + " total=" + totalMs + "ms queue=" + queueWaitMs + "ms connect=" + connectMs
+                + "ms firstByte=" + firstByteMs + "ms download=" + downloadMs
+                + "ms sent=" + bytesSent + " received=" + bytesReceived
+                + " retries=" + retries + " cache=" + cacheStatus;
+    }
+}
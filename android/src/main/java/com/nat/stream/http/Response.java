@@ -22,6 +22,16 @@ public class Response {
 
     public byte[] originalData;
 
+    /**
+     * {@link #originalData} was decoded from the response's Content-Encoding
+     */
+    public boolean decoded;
+
+    /**
+     * File the body was written to, for {@link Request#saveTo} requests
+     */
+    public String filePath;
+
     /**
      * Server internal error
      */
@@ -32,6 +42,21 @@ public class Response {
      */
     public String errorMsg;
 
+    /**
+     * The request was canceled through its {@link Request#cancelSignal} before it completed
+     */
+    public boolean canceled;
+
+    /**
+     * The request failed on a connect or read timeout, or ran past {@link Request#deadlineNanos}
+     */
+    public boolean timedOut;
+
+    /**
+     * Timings and sizes of the request, set by adapters that measure them
+     */
+    public RequestMetrics metrics;
+
     /**
      * Message for toast
      */
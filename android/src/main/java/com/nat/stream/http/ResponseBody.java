@@ -0,0 +1,168 @@
+package com.nat.stream.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Response body read straight from the connection into segments. A body of known length is read
+ * into one array of exactly that size which {@link #bytes()} hands out as is; otherwise it goes
+ * into {@link BufferPool} segments that are copied once, into an array of the final size, and
+ * returned to the pool by {@link #release()}.
+ */
+
+public final class ResponseBody {
+    static final int SEGMENT_SIZE = 16 * 1024;
+    /**
+     * Largest Content-Length trusted to allocate the whole body up front
+     */
+    private static final long MAX_PRESIZE = 4 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final BufferPool mPool;
+    private final List<byte[]> mSegments = new ArrayList<>();
+    /**
+     * Presized array, the only segment not from the pool
+     */
+    private byte[] mExact;
+    private int mTailLength;
+    private int mLength;
+
+    /**
+     * @param expectedLength body length if known, -1 otherwise
+     */
+    public ResponseBody(BufferPool pool, long expectedLength) {
+        mPool = pool;
+        if (expectedLength > 0 && expectedLength <= MAX_PRESIZE) {
+            mExact = new byte[(int) expectedLength];
+            mSegments.add(mExact);
+        }
+    }
+
+    /**
+     * Reads once from {@code in} into the free space of the last segment.
+     *
+     * @return bytes read, -1 at the end of {@code in}
+     */
+    public int readFrom(InputStream in) throws IOException {
+        byte[] tail = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (tail == null || mTailLength == tail.length) {
+            if (tail != null && tail == mExact) {
+                // should be the end, check before taking a segment from the pool
+                int b = in.read();
+                if (b == -1) return -1;
+                tail = addSegment();
+                tail[0] = (byte) b;
+                mTailLength = 1;
+                mLength++;
+                return 1;
+            }
+            tail = addSegment();
+        }
+        int n = in.read(tail, mTailLength, tail.length - mTailLength);
+        if (n > 0) {
+            mTailLength += n;
+            mLength += n;
+        }
+        return n;
+    }
+
+    private byte[] addSegment() {
+        byte[] segment = mPool.acquire(SEGMENT_SIZE);
+        mSegments.add(segment);
+        mTailLength = 0;
+        return segment;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int segmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Segment {@code index}, valid until {@link #release()}; only the first
+     * {@link #segmentLength(int)} bytes belong to the body.
+     */
+    public byte[] segment(int index) {
+        return mSegments.get(index);
+    }
+
+    public int segmentLength(int index) {
+        return index == mSegments.size() - 1 ? mTailLength : mSegments.get(index).length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < mSegments.size(); i++) {
+            out.write(mSegments.get(i), 0, segmentLength(i));
+        }
+    }
+
+    /**
+     * The body as one array, the presized one itself when the body filled it exactly.
+     */
+    public byte[] bytes() {
+        if (mSegments.size() == 1 && mSegments.get(0) == mExact && mTailLength == mExact.length) {
+            return mExact;
+        }
+        byte[] bytes = new byte[mLength];
+        int offset = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            int length = segmentLength(i);
+            System.arraycopy(mSegments.get(i), 0, bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    public String string(Charset charset) {
+        return new String(bytes(), charset);
+    }
+
+    /**
+     * Hands the pooled segments back; the body must not be read afterwards.
+     */
+    public void release() {
+        for (byte[] segment : mSegments) {
+            if (segment != mExact) {
+                mPool.release(segment);
+            }
+        }
+        mSegments.clear();
+        mExact = null;
+        mTailLength = 0;
+        mLength = 0;
+    }
+
+    /**
+     * Charset parameter of a Content-Type value, UTF-8 if absent or unknown.
+     */
+    public static Charset charset(String contentType) {
+        if (contentType == null) return UTF_8;
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase(Locale.US).startsWith("charset=")) {
+                String name = parameter.substring("charset=".length()).trim();
+                if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+                    name = name.substring(1, name.length() - 1);
+                }
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return UTF_8;
+                }
+            }
+        }
+        return UTF_8;
+    }
+}
@@ -0,0 +1,134 @@
+package com.nat.stream.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.UnknownServiceException;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * When and how long {@link DefaultHttpAdapter} waits before sending a failed request again.
+ * Only requests that are safe to repeat are retried: idempotent methods, or requests marked
+ * {@link Request#idempotent}, with a body that can be written twice. A request is retried
+ * on an I/O failure before its response headers arrive, and on 429 and 503 after the
+ * Retry-After delay when the server sends one.
+ */
+
+public class RetryPolicy {
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000);
+    /**
+     * Longest Retry-After honored, a server asking for more gets its error delivered
+     */
+    public static final long MAX_RETRY_AFTER_MS = 30 * 1000;
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    /**
+     * @param maxAttempts attempts including the first one, 1 disables retries
+     * @param initialBackoffMs delay before the first retry, doubled for each further one
+     * @param maxBackoffMs upper bound of the delay
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs) {
+        if (maxAttempts < 1 || initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    /**
+     * @param attempts attempts already made
+     */
+    public boolean canRetry(Request request, int attempts) {
+        if (attempts >= maxAttempts) return false;
+        if (!request.idempotent && !isIdempotent(request.method)) return false;
+        return request.requestBody == null || request.requestBody.isRepeatable();
+    }
+
+    /**
+     * False for failures another attempt would run into again.
+     */
+    public boolean isRetryable(IOException e) {
+        if (e instanceof MalformedURLException || e instanceof UnknownServiceException
+                || e instanceof SSLPeerUnverifiedException) {
+            return false;
+        }
+        return !(e instanceof SSLHandshakeException && e.getCause() instanceof CertificateException);
+    }
+
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * Exponential backoff with jitter, a random delay between half and all of
+     * {@code initialBackoffMs * 2^(attempts - 1)}, capped at {@code maxBackoffMs}.
+     *
+     * @param attempts attempts already made, at least 1
+     */
+    public long backoffMs(int attempts) {
+        long backoff = initialBackoffMs;
+        for (int i = 1; i < attempts && backoff < maxBackoffMs; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffMs);
+        long half = backoff / 2;
+        synchronized (RANDOM) {
+            return half + (long) (RANDOM.nextDouble() * (backoff - half));
+        }
+    }
+
+    /**
+     * Delay before retrying a 429 or 503 response.
+     *
+     * @param retryAfter Retry-After header, delta seconds or an HTTP date, may be null
+     * @return the delay, or -1 if the server asks to wait longer than {@link #MAX_RETRY_AFTER_MS}
+     */
+    public long retryDelayMs(int attempts, String retryAfter) {
+        long backoff = backoffMs(attempts);
+        if (retryAfter == null) return backoff;
+        long delay;
+        try {
+            delay = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            Date date = CacheEntry.parseDate(retryAfter);
+            if (date == null) return backoff;
+            delay = date.getTime() - System.currentTimeMillis();
+        }
+        if (delay > MAX_RETRY_AFTER_MS) return -1;
+        return Math.max(delay, backoff);
+    }
+
+    private static boolean isIdempotent(String method) {
+        if (method == null) return true;
+        String m = method.toUpperCase(Locale.US);
+        return "GET".equals(m) || "HEAD".equals(m) || "PUT".equals(m) || "DELETE".equals(m)
+                || "OPTIONS".equals(m);
+    }
+}
@@ -0,0 +1,53 @@
+package com.nat.stream.http;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Sends each request through the adapter registered for its host, or the default adapter for
+ * hosts without one. Immutable, build a new router to change the routes.
+ */
+
+public class RoutingHttpAdapter implements HttpAdapter {
+    private final HttpAdapter mDefaultAdapter;
+    private final Map<String, HttpAdapter> mHostAdapters;
+
+    /**
+     * @param hostAdapters adapters by host name, copied
+     */
+    public RoutingHttpAdapter(HttpAdapter defaultAdapter, Map<String, HttpAdapter> hostAdapters) {
+        if (defaultAdapter == null) {
+            throw new IllegalArgumentException("defaultAdapter == null");
+        }
+        mDefaultAdapter = defaultAdapter;
+        Map<String, HttpAdapter> adapters = new HashMap<>();
+        if (hostAdapters != null) {
+            for (Map.Entry<String, HttpAdapter> entry : hostAdapters.entrySet()) {
+                adapters.put(entry.getKey().toLowerCase(Locale.US), entry.getValue());
+            }
+        }
+        mHostAdapters = Collections.unmodifiableMap(adapters);
+    }
+
+    public HttpAdapter getDefaultAdapter() {
+        return mDefaultAdapter;
+    }
+
+    /**
+     * Adapter requests to {@code url} are sent through.
+     */
+    public HttpAdapter adapterFor(String url) {
+        if (mHostAdapters.isEmpty()) return mDefaultAdapter;
+        HttpAdapter adapter = mHostAdapters.get(HttpDispatcher.hostOf(url).toLowerCase(Locale.US));
+        return adapter != null ? adapter : mDefaultAdapter;
+    }
+
+    @Override
+    public void sendRequest(Request request, OnHttpListener listener) {
+        adapterFor(request.url).sendRequest(request, listener);
+    }
+}
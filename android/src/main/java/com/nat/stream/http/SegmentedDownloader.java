@@ -0,0 +1,673 @@
+package com.nat.stream.http;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Download engine for {@link Request#saveTo} requests that splits the body into byte ranges
+ * fetched concurrently on the adapter's {@link HttpDispatcher} and written at their offsets
+ * into a pre-sized file. Servers that do not answer a range probe with 206, and bodies too
+ * small for more than one segment, go through the adapter's regular single connection path.
+ */
+
+public class SegmentedDownloader {
+    public static final String TAG = "SegmentedDownloader";
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final DefaultHttpAdapter mAdapter;
+
+    public SegmentedDownloader(DefaultHttpAdapter adapter) {
+        if (adapter == null) {
+            throw new IllegalArgumentException("adapter == null");
+        }
+        mAdapter = adapter;
+    }
+
+    /**
+     * Whether {@code request} can be fetched in ranges: a GET without a body, saved to a file,
+     * with more than one segment. Ranges are always requested with GET, any other request would
+     * not be the one the caller asked for.
+     */
+    public static boolean canSegment(Request request) {
+        return request.saveTo != null && request.segments > 1
+                && (request.method == null || "GET".equals(request.method))
+                && request.body == null && request.requestBody == null;
+    }
+
+    /**
+     * @param request request with {@link Request#saveTo} set, {@link Request#segments} and
+     *                {@link Request#minSegmentSize} control the split; one that
+     *                {@link #canSegment(Request) can not be segmented} goes through the
+     *                adapter's regular path
+     */
+    public void download(final Request request, final HttpAdapter.OnHttpListener listener) {
+        if (request.saveTo == null) {
+            throw new IllegalArgumentException("request.saveTo == null");
+        }
+        if (!canSegment(request)) {
+            mAdapter.sendRequest(request, listener);
+            return;
+        }
+        if (listener != null) {
+            listener.onHttpStart();
+        }
+        try {
+            mAdapter.getDispatcher().enqueue(HttpDispatcher.hostOf(request.url), request.priority,
+                    new HttpDispatcher.DroppableTask() {
+                        @Override
+                        public void run() {
+                            probe(request, listener);
+                        }
+
+                        @Override
+                        public void onDropped() {
+                            finishCanceled(listener, "dispatcher shut down");
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            fail(listener, e.getMessage(), false);
+        }
+    }
+
+    private void probe(Request request, HttpAdapter.OnHttpListener listener) {
+        if (request.cancelSignal != null && request.cancelSignal.isCanceled()) {
+            finishCanceled(listener, "canceled");
+            return;
+        }
+        Probe guard = new Probe(request, mAdapter.getDispatcher());
+        guard.start();
+        HttpURLConnection connection = null;
+        try {
+            connection = openRange(request, 0, 0, null);
+            mAdapter.connectionAcquired(request);
+            guard.connected(connection);
+            int responseCode = connection.getResponseCode();
+            long total = DownloadState.rangeLength(connection);
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL || DownloadState.rangeStart(connection) != 0 || total <= 0) {
+                // likely the whole body, not worth reading off
+                connection.disconnect();
+                mAdapter.connectionReleased(request, false);
+                connection = null;
+                guard.finish();
+                mAdapter.sendRequest(request, new StartedListener(listener));
+                return;
+            }
+            int segments = (int) Math.min(Math.max(request.segments, 1),
+                    Math.max(total / Math.max(request.minSegmentSize, 1), 1));
+            String etag = connection.getHeaderField("ETag");
+            String validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+            Map<String, List<String>> headers = connection.getHeaderFields();
+            drain(connection);
+            mAdapter.connectionReleased(request, DefaultHttpAdapter.isKeepAlive(connection));
+            connection = null;
+            guard.finish();
+            if (segments < 2) {
+                mAdapter.sendRequest(request, new StartedListener(listener));
+                return;
+            }
+            if (listener != null) {
+                listener.onHeadersReceived(HttpURLConnection.HTTP_OK, headers);
+            }
+            start(request, total, segments, validator, listener);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage() + "");
+            failProbe(guard, request, connection, listener, e);
+        } catch (RuntimeException e) {
+            // how some HttpURLConnection implementations react to a disconnect from another thread
+            if (!guard.aborted()) {
+                guard.finish();
+                throw e;
+            }
+            failProbe(guard, request, connection, listener, e);
+        }
+    }
+
+    private void failProbe(Probe guard, Request request, HttpURLConnection connection,
+                           HttpAdapter.OnHttpListener listener, Exception e) {
+        guard.finish();
+        if (connection != null) {
+            connection.disconnect();
+            mAdapter.connectionReleased(request, false);
+        }
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = e.getMessage();
+        response.canceled = guard.canceled();
+        response.timedOut = guard.timedOut() || e instanceof SocketTimeoutException;
+        if (listener != null) {
+            listener.onHttpFinish(response);
+        }
+    }
+
+    private void start(Request request, long total, int segments, String validator,
+                       HttpAdapter.OnHttpListener listener) throws IOException {
+        File target = new File(request.saveTo);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create directory " + parent);
+        }
+        File tmp = DownloadState.partialFile(target);
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            file.setLength(total);
+        } catch (IOException e) {
+            file.close();
+            tmp.delete();
+            throw e;
+        }
+
+        Download download = new Download(request, target, tmp, file, total, segments, validator,
+                mAdapter.getDispatcher(), listener);
+        long segmentSize = total / segments;
+        String host = HttpDispatcher.hostOf(request.url);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            long start = i * segmentSize;
+            long end = i == segments - 1 ? total - 1 : start + segmentSize - 1;
+            final Segment segment = new Segment(download, start, end);
+            tasks.add(new HttpDispatcher.DroppableTask() {
+                @Override
+                public void run() {
+                    fetch(segment);
+                }
+
+                @Override
+                public void onDropped() {
+                    segment.download.dropped();
+                }
+            });
+        }
+        download.queued(tasks);
+        for (Runnable task : tasks) {
+            try {
+                mAdapter.getDispatcher().enqueue(host, request.priority, task);
+            } catch (RejectedExecutionException e) {
+                download.segmentFinished(e);
+            }
+        }
+        if (request.cancelSignal != null) {
+            request.cancelSignal.addOnCancelListener(download);
+        }
+        if (request.deadlineNanos != 0) {
+            download.startDeadline();
+        }
+    }
+
+    private void fetch(Segment segment) {
+        Download download = segment.download;
+        if (download.failed()) {
+            download.segmentFinished(null);
+            return;
+        }
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        byte[] data = null;
+        boolean reusable = false;
+        try {
+            connection = openRange(download.request, segment.start, segment.end, download.validator);
+            mAdapter.connectionAcquired(download.request);
+            download.connected(connection);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                    || DownloadState.rangeStart(connection) != segment.start) {
+                throw new IOException("range " + segment.start + "-" + segment.end + " not served, status "
+                        + connection.getResponseCode());
+            }
+            in = connection.getInputStream();
+            data = BufferPool.SHARED.acquire(BUFFER_SIZE);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = segment.start;
+            long remaining = segment.end - segment.start + 1;
+            int nRead;
+            while (remaining > 0 && !download.failed()
+                    && (nRead = in.read(data, 0, (int) Math.min(BUFFER_SIZE, remaining))) != -1) {
+                buffer.clear();
+                buffer.limit(nRead);
+                while (buffer.hasRemaining()) {
+                    position += download.channel.write(buffer, position);
+                }
+                remaining -= nRead;
+                download.progress(nRead);
+            }
+            if (remaining > 0 && !download.failed()) {
+                throw new IOException("unexpected end of segment " + segment.start + "-" + segment.end);
+            }
+            // a segment ends where its range does, so the stream is at the end of the body
+            reusable = remaining == 0 && DefaultHttpAdapter.isKeepAlive(connection);
+            download.segmentFinished(null);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage() + "");
+            download.segmentFinished(e);
+        } catch (RuntimeException e) {
+            // how some HttpURLConnection implementations react to a disconnect from another thread
+            download.segmentFinished(e);
+            if (!download.canceled()) {
+                throw e;
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (connection != null) {
+                download.disconnected(connection);
+                if (!reusable) {
+                    connection.disconnect();
+                }
+                mAdapter.connectionReleased(download.request, reusable);
+            }
+            BufferPool.SHARED.release(data);
+        }
+    }
+
+    private HttpURLConnection openRange(Request request, long start, long end, String validator) throws IOException {
+        HttpURLConnection connection = mAdapter.createConnection(new URL(request.url));
+        DefaultHttpAdapter.setTimeouts(connection, request);
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        connection.setRequestMethod("GET");
+        if (request.paramMap != null) {
+            for (Map.Entry<String, String> entry : request.paramMap.entrySet()) {
+                connection.addRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        // ranges of a compressed representation can not be stitched together
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        mAdapter.applyKeepAlive(connection);
+        if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+        }
+        return connection;
+    }
+
+    private static void drain(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] data = new byte[64];
+            while (in.read(data) != -1) {
+                // discard the probe byte so the connection can be reused
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void finishCanceled(HttpAdapter.OnHttpListener listener, String message) {
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = message;
+        response.canceled = true;
+        if (listener != null) {
+            listener.onHttpFinish(response);
+        }
+    }
+
+    private static void fail(HttpAdapter.OnHttpListener listener, String message, boolean timedOut) {
+        Response response = new Response();
+        response.statusCode = -1;
+        response.errorCode = -1;
+        response.errorMsg = message;
+        response.timedOut = timedOut;
+        if (listener != null) {
+            listener.onHttpFinish(response);
+        }
+    }
+
+    /**
+     * Cancel listener and deadline timer of the range probe, which disconnect its connection
+     * the way {@link Download} does the segments'.
+     */
+    private static class Probe implements CancelSignal.OnCancelListener {
+        private final Request mRequest;
+        private final HttpDispatcher mDispatcher;
+        private HttpURLConnection mConnection;
+        private boolean mAborted;
+        private boolean mTimedOut;
+        private ScheduledFuture<?> mDeadlineTimer;
+
+        Probe(Request request, HttpDispatcher dispatcher) {
+            mRequest = request;
+            mDispatcher = dispatcher;
+        }
+
+        void start() {
+            if (mRequest.cancelSignal != null) {
+                mRequest.cancelSignal.addOnCancelListener(this);
+            }
+            if (mRequest.deadlineNanos == 0) return;
+            ScheduledFuture<?> timer;
+            try {
+                timer = mDispatcher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        abort(true);
+                    }
+                }, mRequest.remainingMs());
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+            synchronized (this) {
+                mDeadlineTimer = timer;
+            }
+        }
+
+        /**
+         * @throws IOException if the probe was canceled or timed out meanwhile
+         */
+        synchronized void connected(HttpURLConnection connection) throws IOException {
+            if (mAborted) {
+                throw mTimedOut ? new SocketTimeoutException("deadline exceeded") : new IOException("canceled");
+            }
+            mConnection = connection;
+        }
+
+        @Override
+        public void onCancel() {
+            abort(false);
+        }
+
+        private void abort(boolean timedOut) {
+            HttpURLConnection connection;
+            synchronized (this) {
+                if (mAborted) return;
+                mAborted = true;
+                mTimedOut = timedOut;
+                connection = mConnection;
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Unregisters the listener and stops the timer, the probe's connection is done.
+         */
+        void finish() {
+            if (mRequest.cancelSignal != null) {
+                mRequest.cancelSignal.removeOnCancelListener(this);
+            }
+            ScheduledFuture<?> timer;
+            synchronized (this) {
+                mConnection = null;
+                timer = mDeadlineTimer;
+                mDeadlineTimer = null;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+
+        synchronized boolean aborted() {
+            return mAborted;
+        }
+
+        synchronized boolean canceled() {
+            return mAborted && !mTimedOut;
+        }
+
+        synchronized boolean timedOut() {
+            return mTimedOut;
+        }
+    }
+
+    private static class Segment {
+        final Download download;
+        final long start;
+        final long end;
+
+        Segment(Download download, long start, long end) {
+            this.download = download;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Download implements CancelSignal.OnCancelListener {
+        final Request request;
+        final File target;
+        final File tmp;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final long total;
+        final String validator;
+        final HttpAdapter.OnHttpListener listener;
+        private final HttpDispatcher mDispatcher;
+        private final AtomicInteger mRemaining;
+        private long mLoaded;
+        private volatile IOException mError;
+        private volatile boolean mCanceled;
+        private volatile boolean mTimedOut;
+        private ScheduledFuture<?> mDeadlineTimer;
+        private final Set<HttpURLConnection> mConnections = new HashSet<>();
+        private List<Runnable> mQueued;
+
+        Download(Request request, File target, File tmp, RandomAccessFile file, long total, int segments,
+                 String validator, HttpDispatcher dispatcher, HttpAdapter.OnHttpListener listener) {
+            this.request = request;
+            this.target = target;
+            this.tmp = tmp;
+            this.file = file;
+            this.channel = file.getChannel();
+            this.total = total;
+            this.validator = validator;
+            this.listener = listener;
+            mDispatcher = dispatcher;
+            mRemaining = new AtomicInteger(segments);
+        }
+
+        synchronized void queued(List<Runnable> tasks) {
+            mQueued = tasks;
+        }
+
+        /**
+         * @throws IOException if the download was canceled meanwhile
+         */
+        synchronized void connected(HttpURLConnection connection) throws IOException {
+            if (mCanceled) {
+                throw new IOException("canceled");
+            }
+            mConnections.add(connection);
+        }
+
+        synchronized void disconnected(HttpURLConnection connection) {
+            mConnections.remove(connection);
+        }
+
+        @Override
+        public void onCancel() {
+            abort(false);
+        }
+
+        void startDeadline() {
+            ScheduledFuture<?> timer;
+            try {
+                timer = mDispatcher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        abort(true);
+                    }
+                }, request.remainingMs());
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+            synchronized (this) {
+                mDeadlineTimer = timer;
+            }
+        }
+
+        /**
+         * A queued segment was dropped by the dispatcher shutting down, which aborts the whole
+         * download.
+         */
+        void dropped() {
+            synchronized (this) {
+                if (mError == null) {
+                    mError = new IOException("dispatcher shut down");
+                }
+            }
+            abort(false);
+            segmentFinished(null);
+        }
+
+        /**
+         * Drops the segments still queued and disconnects the running ones.
+         *
+         * @param timedOut the deadline passed, rather than the request being canceled
+         */
+        private void abort(boolean timedOut) {
+            List<HttpURLConnection> connections;
+            List<Runnable> queued;
+            synchronized (this) {
+                if (mCanceled) return;
+                mCanceled = true;
+                mTimedOut = timedOut;
+                if (mError == null) {
+                    mError = timedOut ? new SocketTimeoutException("deadline exceeded") : new IOException("canceled");
+                }
+                connections = new ArrayList<>(mConnections);
+                queued = mQueued;
+            }
+            for (HttpURLConnection connection : connections) {
+                connection.disconnect();
+            }
+            if (queued != null) {
+                for (Runnable task : queued) {
+                    if (mDispatcher.cancel(task)) {
+                        segmentFinished(null);
+                    }
+                }
+            }
+        }
+
+        boolean failed() {
+            return mError != null;
+        }
+
+        boolean canceled() {
+            return mCanceled;
+        }
+
+        synchronized void progress(int read) {
+            mLoaded += read;
+            if (listener != null) {
+                listener.onHttpResponseProgress((int) Math.min(mLoaded, Integer.MAX_VALUE));
+            }
+        }
+
+        void segmentFinished(Exception e) {
+            if (e != null && mError == null) {
+                mError = e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            if (request.cancelSignal != null) {
+                request.cancelSignal.removeOnCancelListener(this);
+            }
+            ScheduledFuture<?> timer;
+            synchronized (this) {
+                timer = mDeadlineTimer;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            Response response = new Response();
+            try {
+                try {
+                    if (mError == null) {
+                        channel.force(true);
+                    }
+                } finally {
+                    file.close();
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                if (mLoaded != total || tmp.length() != total) {
+                    throw new IOException("download incomplete, " + mLoaded + " of " + total + " bytes");
+                }
+                if (target.exists() && !target.delete() || !tmp.renameTo(target)) {
+                    throw new IOException("can not move download to " + target);
+                }
+                response.statusCode = HttpURLConnection.HTTP_OK;
+                response.statusMessage = "";
+                response.errorCode = 0;
+                response.filePath = target.getAbsolutePath();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage() + "");
+                tmp.delete();
+                response.statusCode = -1;
+                response.errorCode = -1;
+                response.errorMsg = e.getMessage();
+                response.canceled = mCanceled && !mTimedOut;
+                response.timedOut = mTimedOut || e instanceof SocketTimeoutException;
+            }
+            if (listener != null) {
+                listener.onHttpFinish(response);
+            }
+        }
+    }
+
+    /**
+     * Forwards to a listener whose {@link #onHttpStart()} was already called.
+     */
+    private static class StartedListener implements HttpAdapter.OnHttpListener {
+        private final HttpAdapter.OnHttpListener mListener;
+
+        StartedListener(HttpAdapter.OnHttpListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onHttpStart() {
+        }
+
+        @Override
+        public void onHeadersReceived(int statusCode, Map<String, List<String>> headers) {
+            if (mListener != null) mListener.onHeadersReceived(statusCode, headers);
+        }
+
+        @Override
+        public void onHttpUploadProgress(int uploadProgress) {
+            if (mListener != null) mListener.onHttpUploadProgress(uploadProgress);
+        }
+
+        @Override
+        public void onHttpResponseProgress(int loadedLength) {
+            if (mListener != null) mListener.onHttpResponseProgress(loadedLength);
+        }
+
+        @Override
+        public void onHttpFinish(Response response) {
+            if (mListener != null) mListener.onHttpFinish(response);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.nat.stream.benchmark;
+
+import com.nat.stream.http.DefaultHttpAdapter;
+import com.nat.stream.http.HttpDispatcher;
+import com.nat.stream.http.Request;
+import com.nat.stream.http.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * One {@link DefaultHttpAdapter#sendRequest} round trip at a time: connection, dispatch and
+ * body reading, without the module's JSON handling.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AdapterBenchmark {
+    @Param({"/json", "/large", "/error"})
+    public String path;
+
+    private HttpDispatcher mDispatcher;
+    private DefaultHttpAdapter mAdapter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDispatcher = new HttpDispatcher();
+        mAdapter = new DefaultHttpAdapter(mDispatcher);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    @Benchmark
+    public Response send(LocalServer server) throws InterruptedException {
+        Request request = new Request();
+        request.url = server.url(path);
+        request.method = "GET";
+        request.paramMap = new HashMap<>();
+        Await await = new Await();
+        mAdapter.sendRequest(request, await);
+        return await.response();
+    }
+}
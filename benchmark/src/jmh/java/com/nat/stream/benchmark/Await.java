@@ -0,0 +1,77 @@
+package com.nat.stream.benchmark;
+
+import com.nat.stream.ModuleResultListener;
+import com.nat.stream.http.HttpAdapter;
+import com.nat.stream.http.Response;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Listener a benchmark thread blocks on until the request it sent finishes.
+ */
+
+final class Await implements HttpAdapter.OnHttpListener, ModuleResultListener {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final CountDownLatch mDone;
+    private volatile Object mResult;
+
+    Await() {
+        this(1);
+    }
+
+    /**
+     * @param count requests to wait for, the result kept is the last one's
+     */
+    Await(int count) {
+        mDone = new CountDownLatch(count);
+    }
+
+    Object await() throws InterruptedException {
+        if (!mDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("request did not finish in " + TIMEOUT_SECONDS + "s");
+        }
+        return mResult;
+    }
+
+    Response response() throws InterruptedException {
+        Response response = (Response) await();
+        if (response.statusCode < 0) {
+            throw new IllegalStateException("request failed: " + response.errorMsg);
+        }
+        return response;
+    }
+
+    @Override
+    public void onHttpStart() {
+    }
+
+    @Override
+    public void onHeadersReceived(int statusCode, Map<String, List<String>> headers) {
+    }
+
+    @Override
+    public void onHttpUploadProgress(int uploadProgress) {
+    }
+
+    @Override
+    public void onHttpResponseProgress(int loadedLength) {
+    }
+
+    @Override
+    public void onHttpFinish(Response response) {
+        mResult = response;
+        mDone.countDown();
+    }
+
+    @Override
+    public void onResult(Object o) {
+        mResult = o;
+        mDone.countDown();
+    }
+}
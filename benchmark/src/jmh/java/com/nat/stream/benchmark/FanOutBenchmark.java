@@ -0,0 +1,62 @@
+package com.nat.stream.benchmark;
+
+import com.nat.stream.http.DefaultHttpAdapter;
+import com.nat.stream.http.HttpDispatcher;
+import com.nat.stream.http.Request;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * A burst of concurrent requests to one host, the way a screen loads its data, measured until
+ * the last one finishes. Shows the dispatcher limits and connection reuse under load.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FanOutBenchmark {
+    @Param({"1", "8", "32"})
+    public int requests;
+
+    private HttpDispatcher mDispatcher;
+    private DefaultHttpAdapter mAdapter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDispatcher = new HttpDispatcher();
+        mAdapter = new DefaultHttpAdapter(mDispatcher);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    @Benchmark
+    public Object burst(LocalServer server) throws InterruptedException {
+        Await await = new Await(requests);
+        String url = server.url("/json");
+        for (int i = 0; i < requests; i++) {
+            Request request = new Request();
+            request.url = url;
+            request.method = "GET";
+            request.paramMap = new HashMap<>();
+            mAdapter.sendRequest(request, await);
+        }
+        return await.await();
+    }
+}
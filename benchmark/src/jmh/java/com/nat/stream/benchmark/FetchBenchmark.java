@@ -0,0 +1,60 @@
+package com.nat.stream.benchmark;
+
+import android.content.Context;
+
+import com.nat.stream.StreamModule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * {@link StreamModule#fetch} end to end: option parsing, the adapter chain and assembling the
+ * result map handed back to JS. Coalescing is off so concurrent benchmark threads each pay
+ * for their own request.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FetchBenchmark {
+    @Param({"/json", "/large", "/error"})
+    public String path;
+
+    @Param({"text", "json"})
+    public String responseType;
+
+    private StreamModule mModule;
+    private String mOptions;
+
+    @Setup(Level.Trial)
+    public void setUp(LocalServer server) {
+        mModule = StreamModule.getInstance(new Context(new File(System.getProperty("java.io.tmpdir"))));
+        mModule.setCoalescingEnabled(false);
+        mOptions = "{\"url\":\"" + server.url(path) + "\",\"responseType\":\"" + responseType + "\"}";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mModule.shutdown();
+    }
+
+    @Benchmark
+    public Object fetch() throws InterruptedException {
+        Await await = new Await();
+        mModule.fetch(mOptions, await);
+        return await.await();
+    }
+}
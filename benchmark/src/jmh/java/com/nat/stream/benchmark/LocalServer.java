@@ -0,0 +1,114 @@
+package com.nat.stream.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * Embedded localhost server the benchmarks fetch from, started once per trial:
+ * /json a small JSON object, /large a 1MB binary body, /error a 404 with a JSON body and
+ * /upload, which reads the request body off and answers with its length.
+ */
+
+@State(Scope.Benchmark)
+public class LocalServer {
+    public static final int LARGE_SIZE = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] JSON = ("{\"id\":42,\"name\":\"nat-stream\",\"tags\":[\"a\",\"b\",\"c\"],"
+            + "\"price\":12.5,\"active\":true,\"owner\":{\"id\":7,\"login\":\"instapp\"}}").getBytes(UTF_8);
+    private static final byte[] ERROR = "{\"error\":\"not found\"}".getBytes(UTF_8);
+
+    static {
+        // headers and body go out in separate writes; without this Nagle and delayed acks add
+        // ~40ms to every response and the numbers measure the TCP stack instead of the library
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+    private byte[] mLarge;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        mLarge = new byte[LARGE_SIZE];
+        new Random(1).nextBytes(mLarge);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        mServer.createContext("/json", new Fixed(200, "application/json; charset=utf-8", JSON));
+        mServer.createContext("/large", new Fixed(200, "application/octet-stream", mLarge));
+        mServer.createContext("/error", new Fixed(404, "application/json; charset=utf-8", ERROR));
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long received = 0;
+                byte[] buffer = new byte[16 * 1024];
+                InputStream in = exchange.getRequestBody();
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    received += n;
+                }
+                respond(exchange, 200, "application/json; charset=utf-8",
+                        ("{\"received\":" + received + "}").getBytes(UTF_8));
+            }
+        });
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static final class Fixed implements HttpHandler {
+        private final int mStatus;
+        private final String mContentType;
+        private final byte[] mBody;
+
+        Fixed(int status, String contentType, byte[] body) {
+            mStatus = status;
+            mContentType = contentType;
+            mBody = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            while (in.read() != -1) {
+                // requests carry no body, read to the end for keep-alive
+            }
+            respond(exchange, mStatus, mContentType, mBody);
+        }
+    }
+}
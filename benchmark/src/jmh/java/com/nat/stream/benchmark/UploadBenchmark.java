@@ -0,0 +1,73 @@
+package com.nat.stream.benchmark;
+
+import com.nat.stream.http.DefaultHttpAdapter;
+import com.nat.stream.http.HttpDispatcher;
+import com.nat.stream.http.Request;
+import com.nat.stream.http.RequestBody;
+import com.nat.stream.http.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * POSTs of a streamed body, plain and gzipped on the fly.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private HttpDispatcher mDispatcher;
+    private DefaultHttpAdapter mAdapter;
+    private byte[] mBody;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDispatcher = new HttpDispatcher();
+        mAdapter = new DefaultHttpAdapter(mDispatcher);
+        // half random, half repeated, so gzip has something to do without being trivial
+        mBody = new byte[size];
+        new Random(1).nextBytes(mBody);
+        for (int i = size / 2; i < size; i++) {
+            mBody[i] = (byte) ('a' + i % 16);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    @Benchmark
+    public Response upload(LocalServer server) throws InterruptedException {
+        Request request = new Request();
+        request.url = server.url("/upload");
+        request.method = "POST";
+        request.paramMap = new HashMap<>();
+        request.requestBody = RequestBody.create(mBody);
+        request.gzip = gzip;
+        Await await = new Await();
+        mAdapter.sendRequest(request, await);
+        return await.response();
+    }
+}
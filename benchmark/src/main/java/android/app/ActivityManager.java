@@ -0,0 +1,22 @@
+package android.app;
+
+import android.content.ComponentName;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class ActivityManager {
+    public List<RunningTaskInfo> getRunningTasks(int maxNum) {
+        return Collections.emptyList();
+    }
+
+    public static class RunningTaskInfo {
+        public ComponentName topActivity;
+    }
+}
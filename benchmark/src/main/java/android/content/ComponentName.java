@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class ComponentName {
+    public String getClassName() {
+        return "";
+    }
+}
@@ -0,0 +1,34 @@
+package android.content;
+
+import android.content.res.Resources;
+
+import java.io.File;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class Context {
+    public static final String ACTIVITY_SERVICE = "activity";
+
+    private final File mCacheDir;
+    private final Resources mResources = new Resources();
+
+    public Context(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    public Resources getResources() {
+        return mResources;
+    }
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+}
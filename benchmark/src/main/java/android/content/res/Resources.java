@@ -0,0 +1,17 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class Resources {
+    private final DisplayMetrics mDisplayMetrics = new DisplayMetrics();
+
+    public DisplayMetrics getDisplayMetrics() {
+        return mDisplayMetrics;
+    }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public final class Environment {
+    private Environment() {
+    }
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
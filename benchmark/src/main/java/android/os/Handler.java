@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class Handler {
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+}
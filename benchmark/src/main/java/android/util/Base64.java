@@ -0,0 +1,18 @@
+package android.util;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public final class Base64 {
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+}
@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * Copyright (c) 2017 Instapp. All rights reserved.
+ *
+ * JVM stand-in for the android class of the same name, just what the library calls.
+ */
+
+public class DisplayMetrics {
+    public int widthPixels;
+    public int heightPixels;
+    public float density;
+    public float xdpi;
+    public float ydpi;
+}